@@ -69,9 +69,8 @@ public class WhiteboardApp extends JFrame {
         canvas = new DrawCanvas(this);
         canvas.setBackground(WHITE);
         canvas.setBorder(BorderFactory.createLineBorder(ACCENT_COLOR, 1));
-        JScrollPane canvasScroll = new JScrollPane(canvas);
-        canvasScroll.setBorder(null);
-        contentPanel.add(canvasScroll, BorderLayout.CENTER);
+        // The canvas pans and zooms itself, so it fills the space rather than scrolling
+        contentPanel.add(canvas, BorderLayout.CENTER);
 
         // Right users panel
         JPanel rightPanel = createRightUsersPanel();
@@ -663,19 +662,24 @@ public class WhiteboardApp extends JFrame {
         canvas.addMouseMotionListener(new MouseMotionAdapter() {
             @Override
             public void mouseMoved(MouseEvent e) {
-                mousePositionText = String.format("Position: %d x %d", e.getX(), e.getY());
-                updateCombinedStatusLabel();
+                updateMousePosition(e);
             }
             @Override
             public void mouseDragged(MouseEvent e) {
-                mousePositionText = String.format("Position: %d x %d", e.getX(), e.getY());
-                updateCombinedStatusLabel();
+                updateMousePosition(e);
             }
         });
 
         return bottomPanel;
     }
 
+    // Shows the board position under the pointer, which pan and zoom decouple from the screen
+    private void updateMousePosition(MouseEvent e) {
+        Point world = canvas.toWorld(e.getPoint());
+        mousePositionText = String.format("Position: %d x %d (%d%%)", world.x, world.y, canvas.getZoomPercent());
+        updateCombinedStatusLabel();
+    }
+
     // Helper to keep status and coords cleanly separated
     private void updateCombinedStatusLabel() {
         coordinateLabel.setText(connectionStatus + " | " + mousePositionText);
@@ -1,23 +1,29 @@
 package com.whiteboard.client.network;
 
-import java.io.BufferedReader;
+import java.awt.Color;
+import java.io.BufferedOutputStream;
 import java.io.IOException;
-import java.io.PrintWriter;
+import java.io.OutputStream;
 import java.net.Socket;
+import java.nio.charset.StandardCharsets;
 
 import com.whiteboard.client.WhiteboardApp;
 import com.whiteboard.client.ui.DrawingShape;
-import java.io.InputStreamReader;
+import com.whiteboard.common.protocol.BinaryCodec;
+import com.whiteboard.common.protocol.FrameReader;
 
 /**
  * Handles communication with the server.
  * Sends drawing data and receives updates from other users.
+ * Asks for the binary protocol at JOIN and switches its own outgoing
+ * messages to binary frames once the server acknowledges it.
  */
 public class NetworkHandler implements Runnable {
 
     private Socket socket;
-    private BufferedReader in;
-    private PrintWriter out;
+    private FrameReader in;
+    private OutputStream out;
+    private volatile boolean binary = false;
     private WhiteboardApp app;
     private String sessionName;
     private String username;
@@ -29,48 +35,36 @@ public class NetworkHandler implements Runnable {
         this.sessionName = sessionName;
         this.username = username;
         this.socket = new Socket(server, port);
-        this.in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-        this.out = new PrintWriter(socket.getOutputStream(), true);
+        this.in = new FrameReader(socket.getInputStream());
+        this.out = new BufferedOutputStream(socket.getOutputStream());
         this.connected = true;
 
-        // Send join request
-        out.println("JOIN:" + sessionName + ":" + username);
+        // Send join request, offering the binary protocol
+        send("JOIN:" + sessionName + ":" + username + ";proto=" + BinaryCodec.PROTOCOL_V1);
+    }
+
+    /**
+     * Writes one protocol line, as a binary frame if the server agreed to it.
+     */
+    private synchronized void send(String message) {
+        try {
+            if (binary) {
+                out.write(BinaryCodec.encodeFrame(message));
+            } else {
+                out.write((message + "\n").getBytes(StandardCharsets.UTF_8));
+            }
+            out.flush();
+        } catch (IOException e) {
+            System.err.println("Error sending message: " + e.getMessage());
+        }
     }
 
     @Override
     public void run() {
+        MessageDispatcher dispatcher = new MessageDispatcher();
         try {
-            String message;
-            while (connected && (message = in.readLine()) != null) {
-                System.out.println("Received message: " + message);
-                if (message.startsWith("JOINED:")) {
-                    System.out.println("Successfully joined session: " + message.substring(7));
-                } else if (message.equals("CLEAR")) {
-                    app.getCanvas().clear();
-                } else if (message.startsWith("DELETE:")) {
-                    // Handle delete event
-                    String shapeId = message.substring(7);
-                    app.getCanvas().removeShapeById(shapeId);
-                } else if (message.startsWith("USER_LIST:")) {
-                    // Received user list from server
-                    String userListStr = message.substring(10);
-                    String[] users = userListStr.split(",");
-                    app.updateUserList(users);
-                } else if (message.startsWith("USER_JOIN:")) {
-                    // New user joined
-                    String newUser = message.substring(10);
-                    app.addUser(newUser);
-                } else if (message.startsWith("USER_LEAVE:")) {
-                    // User left
-                    String leftUser = message.substring(11);
-                    app.removeUser(leftUser);
-                } else {
-                    // Drawing event from another user
-                    DrawingShape shape = DrawingShape.deserialize(message);
-                    if (shape != null) {
-                        app.getCanvas().addRemoteShape(shape);
-                    }
-                }
+            while (connected && in.read(dispatcher)) {
+                // Each message is handled as it is decoded
             }
         } catch (IOException e) {
             if (connected) {
@@ -82,29 +76,123 @@ public class NetworkHandler implements Runnable {
         }
     }
 
+    /**
+     * Applies messages from the server. Binary frames arrive as decoded fields
+     * and go straight to the canvas; text lines are parsed here.
+     */
+    private final class MessageDispatcher implements BinaryCodec.MessageHandler {
+
+        @Override
+        public void shape(String id, String type, int x1, int y1, int x2, int y2, int rgb, int strokeWidth,
+                          int[] xPoints, int[] yPoints) {
+            Color color = new Color(rgb);
+            DrawingShape shape = xPoints != null
+                    ? DrawingShape.stroke(id, xPoints, yPoints, color, strokeWidth)
+                    : new DrawingShape(id, type, x1, y1, x2, y2, color, strokeWidth);
+            app.getCanvas().addRemoteShape(shape);
+        }
+
+        @Override
+        public void append(String id, int[] xPoints, int[] yPoints) {
+            app.getCanvas().appendToStroke(id, xPoints, yPoints);
+        }
+
+        @Override
+        public void strokeEnd(String id) {
+            // Followed by the finished stroke; nothing to do until then
+        }
+
+        @Override
+        public void delete(String id) {
+            app.getCanvas().removeShapeById(id);
+        }
+
+        @Override
+        public void clear() {
+            app.getCanvas().clear();
+        }
+
+        @Override
+        public void text(String message) {
+            System.out.println("Received message: " + message);
+            if (message.startsWith("JOINED:")) {
+                String joined = message.substring(7);
+                if (joined.endsWith(";proto=" + BinaryCodec.PROTOCOL_V1)) {
+                    binary = true;
+                    joined = joined.substring(0, joined.lastIndexOf(";proto="));
+                }
+                System.out.println("Successfully joined session: " + joined
+                        + (binary ? " (binary protocol)" : ""));
+            } else if (message.equals("CLEAR")) {
+                clear();
+            } else if (message.startsWith("DELETE:")) {
+                // Handle delete event
+                delete(message.substring(7));
+            } else if (message.startsWith("APPEND:")) {
+                // Live points for a stroke another user is drawing
+                int idEnd = message.indexOf(':', 7);
+                if (idEnd > 0) {
+                    app.getCanvas().appendToStroke(message.substring(7, idEnd), message.substring(idEnd + 1));
+                }
+            } else if (message.startsWith("USER_LIST:")) {
+                // Received user list from server
+                String userListStr = message.substring(10);
+                String[] users = userListStr.split(",");
+                app.updateUserList(users);
+            } else if (message.startsWith("USER_JOIN:")) {
+                // New user joined
+                String newUser = message.substring(10);
+                app.addUser(newUser);
+            } else if (message.startsWith("USER_LEAVE:")) {
+                // User left
+                String leftUser = message.substring(11);
+                app.removeUser(leftUser);
+            } else {
+                // Drawing event from another user
+                DrawingShape shape = DrawingShape.deserialize(message);
+                if (shape != null) {
+                    app.getCanvas().addRemoteShape(shape);
+                }
+            }
+        }
+    }
+
     public void sendDrawingEvent(DrawingShape shape) {
         if (connected && out != null) {
-            out.println(shape.serialize());
+            send(shape.serialize());
+        }
+    }
+
+    public void sendStrokeAppend(String shapeId, int x, int y) {
+        if (connected && out != null) {
+            send("APPEND:" + shapeId + ":" + x + "," + y);
+        }
+    }
+
+    public void sendStrokeEnd(String shapeId) {
+        if (connected && out != null) {
+            send("STROKE_END:" + shapeId);
         }
     }
 
     public void sendDeleteEvent(String shapeId) {
         if (connected && out != null) {
-            out.println("DELETE:" + shapeId);
+            send("DELETE:" + shapeId);
         }
     }
 
     public void sendClearEvent() {
         if (connected && out != null) {
-            out.println("CLEAR");
+            send("CLEAR");
         }
     }
 
     public void disconnect() {
+        boolean wasConnected = connected;
         connected = false;
         try {
-            if (out != null) {
-                out.println("DISCONNECT");
+            if (wasConnected && out != null) {
+                send("DISCONNECT");
             }
             if (in != null)
                 in.close();
@@ -4,28 +4,97 @@ import javax.swing.*;
 import java.awt.*;
 import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
+import java.awt.event.MouseWheelEvent;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
 
 import com.whiteboard.client.WhiteboardApp;
 import com.whiteboard.client.network.NetworkHandler;
+import com.whiteboard.common.util.Constants;
 
 /**
  * The drawing surface that displays all user interactions.
  * Handles mouse events and drawing operations.
+ *
+ * The board is unbounded: shapes are kept in world coordinates and the canvas
+ * is a view onto them that can be zoomed (Ctrl + wheel) and panned (wheel,
+ * middle or right drag, or dragging with the SELECT tool).
+ *
+ * Finished shapes are rasterised into the {@link TileCache}'s tiles as they
+ * arrive, and a repaint just copies tiles, so paint cost doesn't grow with the
+ * board and panning only renders the tiles scrolling into view. Only strokes
+ * still being drawn and the tool preview are drawn on top each time. Erasing
+ * drops just the tiles under the erased shape; they are rendered again from
+ * the shapes a {@link ShapeGrid} finds there. The grid also gives the eraser
+ * the few shapes near the pointer to hit-test.
+ *
+ * Changes repaint only the area they touch. Remote ones are gathered into one
+ * rectangle and repainted together once per frame, however many arrive.
+ *
+ * The canvas model belongs to the event dispatch thread. The network thread
+ * only queues its changes; they are applied in a batch on the EDT once per
+ * frame, so painting and erasing never see the shapes mid-change.
  */
 public class DrawCanvas extends JPanel {
 
     private WhiteboardApp app;
-    private List<DrawingShape> shapes = new ArrayList<>();
+    // Every shape on the board by id; drawing order is kept by the grid
+    private final Map<String, DrawingShape> shapes = new HashMap<>();
+    // Finished shapes, already in shapes, waiting to be drawn onto the cached tiles
+    private final Set<DrawingShape> unbaked = new LinkedHashSet<>();
+    // Strokes still growing: not in the tiles, drawn over them each paint
+    private final Set<DrawingShape> live = new LinkedHashSet<>();
+    private final ShapeGrid grid = new ShapeGrid();
+    private final TileCache tiles = new TileCache();
+    // Widest pen of any shape added, so eraser queries find every shape it can hit
+    private int maxStrokeWidth;
+    // View: screen = world * zoom - pan. Zoom doubles every ZOOM_LEVELS_PER_DOUBLING levels.
+    private int zoomLevel;
+    private double zoom = 1;
+    private int panX;
+    private int panY;
+    // Where the last pan drag was, or null when not panning
+    private Point panAnchor;
+    // Wheel rotation towards the next zoom level, for trackpads' fractional steps
+    private double zoomRotation;
+    // In world coordinates
     private Point startPoint;
     private Point currentPoint;
     private boolean drawing = false;
+    // Freehand stroke being drawn with the PEN tool
+    private DrawingShape currentStroke;
+    // Where the tool preview was last drawn (world coordinates), to clear it when it moves
+    private Rectangle previewBounds;
+    // Long strokes are split so a single message/row stays small
+    private static final int MAX_STROKE_POINTS = 1000;
+    private static final int FRAME_MS = 16;
+    private static final int ZOOM_LEVELS_PER_DOUBLING = 4;
+    private static final int MIN_ZOOM_LEVEL = -4 * ZOOM_LEVELS_PER_DOUBLING;
+    private static final int MAX_ZOOM_LEVEL = 3 * ZOOM_LEVELS_PER_DOUBLING;
+    private static final int WHEEL_PAN_PIXELS = 40;
+    // Longest spent applying queued changes in one frame, so a join replay doesn't freeze input
+    private static final long FRAME_BUDGET_NANOS = TimeUnit.MILLISECONDS.toNanos(FRAME_MS / 2);
+
+    // Changes from other threads, applied on the EDT by the frame timer
+    private final Queue<Runnable> remoteChanges = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean frameScheduled = new AtomicBoolean();
+    private final Timer frameTimer = new Timer(FRAME_MS, e -> applyRemoteChanges());
+    // Area changed by remote changes this frame, or null
+    private Rectangle dirty;
 
     public DrawCanvas(WhiteboardApp app) {
         this.app = app;
         setBackground(Color.WHITE);
-        setPreferredSize(new Dimension(800, 600));
+        setPreferredSize(new Dimension(Constants.CANVAS_WIDTH, Constants.CANVAS_HEIGHT));
 
         MouseAdapter mouseAdapter = new MouseAdapter() {
             @Override
@@ -42,77 +111,94 @@ public class DrawCanvas extends JPanel {
             public void mouseReleased(MouseEvent e) {
                 handleMouseReleased(e);
             }
+
+            @Override
+            public void mouseWheelMoved(MouseWheelEvent e) {
+                handleMouseWheel(e);
+            }
         };
 
         addMouseListener(mouseAdapter);
         addMouseMotionListener(mouseAdapter);
+        addMouseWheelListener(mouseAdapter);
+        frameTimer.setRepeats(false);
     }
 
     private void handleMousePressed(MouseEvent e) {
-        startPoint = e.getPoint();
-        currentPoint = e.getPoint();
-        drawing = true;
-
-        if (app.getCurrentTool().equals("SELECT")) {
-            drawing = false;
+        if (drawing) {
+            // A second button pressed mid-drag
+            return;
+        }
+        if (SwingUtilities.isMiddleMouseButton(e) || SwingUtilities.isRightMouseButton(e)
+                || app.getCurrentTool().equals("SELECT")) {
+            panAnchor = e.getPoint();
             return;
         }
 
+        startPoint = toWorld(e.getPoint());
+        currentPoint = startPoint;
+        drawing = true;
+
         if (app.getCurrentTool().equals("ERASER")) {
             // Erase shapes at this point
-            eraseAtPoint(currentPoint.x, currentPoint.y, app.getStrokeWidth() * 2);
-            repaint();
+            repaintWorld(eraseAtPoint(currentPoint.x, currentPoint.y, app.getStrokeWidth() * 2));
         } else if (app.getCurrentTool().equals("PEN")) {
-            DrawingShape shape = new DrawingShape(
-                    app.getCurrentTool(),
-                    startPoint.x, startPoint.y,
-                    currentPoint.x, currentPoint.y,
-                    app.getCurrentColor(),
-                    app.getStrokeWidth());
-            shapes.add(shape);
-            repaint();
-            sendShape(shape);
+            startStroke(currentPoint);
+            repaintWorld(currentStroke.getBounds());
         }
     }
 
     private void handleMouseDragged(MouseEvent e) {
+        if (panAnchor != null) {
+            panBy(panAnchor.x - e.getX(), panAnchor.y - e.getY());
+            panAnchor = e.getPoint();
+            return;
+        }
         if (!drawing)
             return;
 
-        currentPoint = e.getPoint();
-
-        if (app.getCurrentTool().equals("SELECT")) {
-            return;
-        }
+        currentPoint = toWorld(e.getPoint());
 
         if (app.getCurrentTool().equals("ERASER")) {
             // Continue erasing as mouse drags
-            eraseAtPoint(currentPoint.x, currentPoint.y, app.getStrokeWidth() * 2);
+            repaintWorld(eraseAtPoint(currentPoint.x, currentPoint.y, app.getStrokeWidth() * 2));
             startPoint = currentPoint;
-            repaint();
-        } else if (app.getCurrentTool().equals("PEN")) {
-            DrawingShape shape = new DrawingShape(
-                    app.getCurrentTool(),
-                    startPoint.x, startPoint.y,
-                    currentPoint.x, currentPoint.y,
-                    app.getCurrentColor(),
-                    app.getStrokeWidth());
-            shapes.add(shape);
+        } else if (app.getCurrentTool().equals("PEN") && currentStroke != null) {
+            if (currentStroke.getPointCount() >= MAX_STROKE_POINTS) {
+                // Close this stroke and carry on seamlessly in a new one
+                finishStroke();
+                startStroke(startPoint);
+            }
+            currentStroke.appendPoint(currentPoint.x, currentPoint.y);
+            grid.update(currentStroke);
             startPoint = currentPoint;
-            repaint();
-            sendShape(shape);
+            // Just the new segment
+            repaintWorld(currentStroke.getBoundsFrom(currentStroke.getPointCount() - 2));
+
+            NetworkHandler handler = app.getNetworkHandler();
+            if (handler != null && handler.isConnected()) {
+                handler.sendStrokeAppend(currentStroke.getId(), currentPoint.x, currentPoint.y);
+            }
         } else {
             // For other tools (LINE, RECTANGLE, CIRCLE, TRIANGLE), just repaint to show
-            // preview
-            repaint();
+            // preview, where it was and where it is now
+            repaintPreview();
         }
     }
 
     private void handleMouseReleased(MouseEvent e) {
+        if (panAnchor != null) {
+            panAnchor = null;
+            return;
+        }
         if (!drawing)
             return;
 
-        currentPoint = e.getPoint();
+        currentPoint = toWorld(e.getPoint());
+
+        if (currentStroke != null) {
+            finishStroke();
+        }
 
         if (app.getCurrentTool().equals("LINE") || app.getCurrentTool().equals("RECTANGLE")
                 || app.getCurrentTool().equals("CIRCLE") || app.getCurrentTool().equals("TRIANGLE")) {
@@ -122,30 +208,151 @@ public class DrawCanvas extends JPanel {
                     currentPoint.x, currentPoint.y,
                     app.getCurrentColor(),
                     app.getStrokeWidth());
-            shapes.add(shape);
-            repaint();
+            addShape(shape, false);
             sendShape(shape);
         }
 
         drawing = false;
+        repaintPreview();
+    }
+
+    /**
+     * Ctrl (or Cmd) + wheel zooms about the pointer; the wheel alone pans,
+     * sideways with Shift
+     */
+    private void handleMouseWheel(MouseWheelEvent e) {
+        if (e.isControlDown() || e.isMetaDown()) {
+            zoomRotation -= e.getPreciseWheelRotation();
+            int steps = (int) zoomRotation;
+            if (steps != 0) {
+                zoomRotation -= steps;
+                zoomAt(e.getPoint(), zoomLevel + steps);
+            }
+        } else {
+            int distance = (int) Math.round(e.getPreciseWheelRotation() * WHEEL_PAN_PIXELS);
+            if (e.isShiftDown()) {
+                panBy(distance, 0);
+            } else {
+                panBy(0, distance);
+            }
+        }
+    }
+
+    /**
+     * Moves the view by a number of screen pixels
+     */
+    private void panBy(int dx, int dy) {
+        if (dx == 0 && dy == 0) {
+            return;
+        }
+        panX += dx;
+        panY += dy;
+        // Cached tiles are just drawn at their new places
+        repaint();
+    }
+
+    /**
+     * Changes the zoom level, keeping the world point under a screen point where it is
+     */
+    private void zoomAt(Point screen, int level) {
+        level = Math.max(MIN_ZOOM_LEVEL, Math.min(MAX_ZOOM_LEVEL, level));
+        if (level == zoomLevel) {
+            return;
+        }
+        double worldX = (screen.x + panX) / zoom;
+        double worldY = (screen.y + panY) / zoom;
+        zoomLevel = level;
+        zoom = Math.pow(2, (double) level / ZOOM_LEVELS_PER_DOUBLING);
+        panX = (int) Math.round(worldX * zoom - screen.x);
+        panY = (int) Math.round(worldY * zoom - screen.y);
+        repaint();
+    }
+
+    /**
+     * @param screen A point on the canvas
+     * @return The board position shown there
+     */
+    public Point toWorld(Point screen) {
+        return new Point((int) Math.floor((screen.x + panX) / zoom), (int) Math.floor((screen.y + panY) / zoom));
+    }
+
+    /**
+     * @return The board area shown in a screen area, rounded out to whole units
+     */
+    private Rectangle toWorld(Rectangle screen) {
+        int x0 = (int) Math.floor((screen.x + panX) / zoom);
+        int y0 = (int) Math.floor((screen.y + panY) / zoom);
+        int x1 = (int) Math.ceil((screen.x + screen.width + panX) / zoom);
+        int y1 = (int) Math.ceil((screen.y + screen.height + panY) / zoom);
+        return new Rectangle(x0, y0, x1 - x0, y1 - y0);
+    }
+
+    /**
+     * @return The screen area showing a board area, rounded out to whole pixels
+     */
+    private Rectangle toScreen(Rectangle world) {
+        int x0 = (int) Math.floor(world.x * zoom) - panX;
+        int y0 = (int) Math.floor(world.y * zoom) - panY;
+        int x1 = (int) Math.ceil((world.x + world.width) * zoom) - panX;
+        int y1 = (int) Math.ceil((world.y + world.height) * zoom) - panY;
+        return new Rectangle(x0, y0, x1 - x0, y1 - y0);
+    }
+
+    /**
+     * @return The current zoom as a percentage
+     */
+    public int getZoomPercent() {
+        return (int) Math.round(zoom * 100);
+    }
+
+    private void repaintWorld(Rectangle world) {
+        if (!world.isEmpty()) {
+            repaint(toScreen(world));
+        }
+    }
+
+    /**
+     * Begins a freehand stroke and announces it with its first point
+     */
+    private void startStroke(Point point) {
+        currentStroke = DrawingShape.newStroke(point.x, point.y, app.getCurrentColor(), app.getStrokeWidth());
+        addShape(currentStroke, true);
+        sendShape(currentStroke);
+    }
+
+    /**
+     * Tells the server the current stroke is complete so it is recorded as one shape
+     */
+    private void finishStroke() {
+        NetworkHandler handler = app.getNetworkHandler();
+        if (handler != null && handler.isConnected()) {
+            handler.sendStrokeEnd(currentStroke.getId());
+        }
+        finishShape(currentStroke);
+        currentStroke = null;
     }
 
     /**
      * Erases shapes that intersect with the eraser point
+     * @return The area the erased shapes covered, empty if none
      */
-    private void eraseAtPoint(int x, int y, int eraserRadius) {
+    private Rectangle eraseAtPoint(int x, int y, int eraserRadius) {
         List<DrawingShape> toRemove = new ArrayList<>();
 
-        // Find all shapes that intersect with the eraser
-        for (DrawingShape shape : shapes) {
+        // Find all shapes that intersect with the eraser, among those whose bounds are in reach
+        int reach = eraserRadius + maxStrokeWidth;
+        Rectangle area = new Rectangle(x - reach, y - reach, 2 * reach, 2 * reach);
+        for (DrawingShape shape : grid.query(area)) {
             if (shapeIntersectsPoint(shape, x, y, eraserRadius)) {
                 toRemove.add(shape);
             }
         }
 
         // Remove shapes locally and notify server to delete them
+        Rectangle erased = new Rectangle();
         for (DrawingShape shape : toRemove) {
-            shapes.remove(shape);
+            Rectangle bounds = removeShape(shape);
+            erased = erased.isEmpty() ? bounds : erased.union(bounds);
 
             // Send delete command to server with shape ID
             NetworkHandler handler = app.getNetworkHandler();
@@ -153,18 +360,33 @@ public class DrawCanvas extends JPanel {
                 handler.sendDeleteEvent(shape.getId());
             }
         }
+        return erased;
     }
 
     /**
      * Checks if a shape intersects with a point (for eraser)
      */
     private boolean shapeIntersectsPoint(DrawingShape shape, int x, int y, int radius) {
+        // Distances are compared squared, saving a square root per segment
+        double reach = radius + shape.strokeWidth;
+        double reachSq = reach * reach;
         switch (shape.type) {
+            case "STROKE":
+                // Check every segment of the polyline
+                for (int i = 0; i < shape.pointCount; i++) {
+                    int j = Math.max(0, i - 1);
+                    double segmentDistSq = pointToLineDistanceSq(x, y,
+                            shape.xPoints[j], shape.yPoints[j], shape.xPoints[i], shape.yPoints[i]);
+                    if (segmentDistSq <= reachSq) {
+                        return true;
+                    }
+                }
+                return false;
+
             case "PEN":
             case "LINE":
                 // Check distance from point to line segment
-                double dist = pointToLineDistance(x, y, shape.x1, shape.y1, shape.x2, shape.y2);
-                return dist <= radius + shape.strokeWidth;
+                return pointToLineDistanceSq(x, y, shape.x1, shape.y1, shape.x2, shape.y2) <= reachSq;
 
             case "RECTANGLE":
                 int rectX = Math.min(shape.x1, shape.x2);
@@ -179,8 +401,13 @@ public class DrawCanvas extends JPanel {
                 int circleSize = Math.max(Math.abs(shape.x2 - shape.x1), Math.abs(shape.y2 - shape.y1));
                 int circleCenterX = circleX + circleSize / 2;
                 int circleCenterY = circleY + circleSize / 2;
-                double distToCenter = Math.sqrt(Math.pow(x - circleCenterX, 2) + Math.pow(y - circleCenterY, 2));
-                return Math.abs(distToCenter - circleSize / 2) <= radius + shape.strokeWidth;
+                // Within reach of the outline: radius - reach <= distance to center <= radius + reach
+                double dx = x - circleCenterX;
+                double dy = y - circleCenterY;
+                double distToCenterSq = dx * dx + dy * dy;
+                double outer = circleSize / 2 + reach;
+                double inner = circleSize / 2 - reach;
+                return distToCenterSq <= outer * outer && (inner <= 0 || distToCenterSq >= inner * inner);
 
             case "TRIANGLE":
                 // Simplified: check if point is near any of the three edges
@@ -189,13 +416,9 @@ public class DrawCanvas extends JPanel {
                 int bottomY = Math.max(shape.y1, shape.y2);
 
                 // Check three edges
-                double dist1 = pointToLineDistance(x, y, topX, topY, shape.x1, bottomY);
-                double dist2 = pointToLineDistance(x, y, shape.x1, bottomY, shape.x2, bottomY);
-                double dist3 = pointToLineDistance(x, y, shape.x2, bottomY, topX, topY);
-
-                return dist1 <= radius + shape.strokeWidth ||
-                        dist2 <= radius + shape.strokeWidth ||
-                        dist3 <= radius + shape.strokeWidth;
+                return pointToLineDistanceSq(x, y, topX, topY, shape.x1, bottomY) <= reachSq ||
+                        pointToLineDistanceSq(x, y, shape.x1, bottomY, shape.x2, bottomY) <= reachSq ||
+                        pointToLineDistanceSq(x, y, shape.x2, bottomY, topX, topY) <= reachSq;
 
             default:
                 return false;
@@ -203,9 +426,9 @@ public class DrawCanvas extends JPanel {
     }
 
     /**
-     * Calculate distance from point to line segment
+     * Calculate the squared distance from point to line segment
      */
-    private double pointToLineDistance(int px, int py, int x1, int y1, int x2, int y2) {
+    private double pointToLineDistanceSq(int px, int py, int x1, int y1, int x2, int y2) {
         double A = px - x1;
         double B = py - y1;
         double C = x2 - x1;
@@ -229,7 +452,7 @@ public class DrawCanvas extends JPanel {
 
         double dx = px - xx;
         double dy = py - yy;
-        return Math.sqrt(dx * dx + dy * dy);
+        return dx * dx + dy * dy;
     }
 
     /**
@@ -237,12 +460,11 @@ public class DrawCanvas extends JPanel {
      */
     private boolean pointIntersectsRectangle(int px, int py, int radius, int rx, int ry, int rw, int rh) {
         // Check all four edges of the rectangle
-        double distTop = pointToLineDistance(px, py, rx, ry, rx + rw, ry);
-        double distBottom = pointToLineDistance(px, py, rx, ry + rh, rx + rw, ry + rh);
-        double distLeft = pointToLineDistance(px, py, rx, ry, rx, ry + rh);
-        double distRight = pointToLineDistance(px, py, rx + rw, ry, rx + rw, ry + rh);
-
-        return distTop <= radius || distBottom <= radius || distLeft <= radius || distRight <= radius;
+        double radiusSq = (double) radius * radius;
+        return pointToLineDistanceSq(px, py, rx, ry, rx + rw, ry) <= radiusSq
+                || pointToLineDistanceSq(px, py, rx, ry + rh, rx + rw, ry + rh) <= radiusSq
+                || pointToLineDistanceSq(px, py, rx, ry, rx, ry + rh) <= radiusSq
+                || pointToLineDistanceSq(px, py, rx + rw, ry, rx + rw, ry + rh) <= radiusSq;
     }
 
     private void sendShape(DrawingShape shape) {
@@ -252,64 +474,285 @@ public class DrawCanvas extends JPanel {
         }
     }
 
+    /**
+     * Adds a shape drawn by another user. May be called from any thread.
+     */
     public void addRemoteShape(DrawingShape shape) {
-        shapes.add(shape);
-        SwingUtilities.invokeLater(this::repaint);
+        queueChange(() -> applyRemoteShape(shape));
     }
 
+    /**
+     * Extend a remote user's open stroke with live points. May be called from any thread.
+     */
+    public void appendToStroke(String shapeId, String points) {
+        queueChange(() -> applyStrokeAppend(shapeId, shape -> shape.appendPoints(points)));
+    }
+
+    /**
+     * Extend a remote user's open stroke with decoded points. May be called from any thread.
+     */
+    public void appendToStroke(String shapeId, int[] xPoints, int[] yPoints) {
+        queueChange(() -> applyStrokeAppend(shapeId, shape -> shape.appendPoints(xPoints, yPoints)));
+    }
+
+    /**
+     * Removes every shape. May be called from any thread.
+     */
     public void clear() {
+        queueChange(this::applyClear);
+    }
+
+    /**
+     * Remove a shape by ID (called when remote user erases). May be called from any thread.
+     */
+    public void removeShapeById(String shapeId) {
+        queueChange(() -> applyRemoval(shapeId));
+    }
+
+    /**
+     * Queues a change for the EDT, starting the frame timer if it isn't already due
+     */
+    private void queueChange(Runnable change) {
+        remoteChanges.add(change);
+        if (frameScheduled.compareAndSet(false, true)) {
+            frameTimer.start();
+        }
+    }
+
+    /**
+     * Applies the changes queued since the last frame and repaints what they touched
+     */
+    private void applyRemoteChanges() {
+        // Cleared first, so a change queued while these are applied schedules the next frame
+        frameScheduled.set(false);
+        long deadline = System.nanoTime() + FRAME_BUDGET_NANOS;
+        Runnable change;
+        while ((change = remoteChanges.poll()) != null) {
+            change.run();
+            if (System.nanoTime() - deadline >= 0) {
+                break;
+            }
+        }
+        if (!remoteChanges.isEmpty() && frameScheduled.compareAndSet(false, true)) {
+            frameTimer.start();
+        }
+        if (dirty != null) {
+            repaint(dirty);
+            dirty = null;
+        }
+    }
+
+    private void applyRemoteShape(DrawingShape shape) {
+        DrawingShape existing = shapes.get(shape.getId());
+        if (existing != null) {
+            // A finished stroke replaces the copy built from live appends, as a shape
+            // saved again replaces its old copy. It goes last, where the server records it.
+            repaintArea(removeShape(existing));
+            addShape(shape, false);
+        } else {
+            // A stroke's first point is usually followed by live appends
+            addShape(shape, shape.isStroke() && shape.getPointCount() == 1);
+        }
+        repaintArea(shape.getBounds());
+    }
+
+    private void applyStrokeAppend(String shapeId, Consumer<DrawingShape> append) {
+        DrawingShape shape = shapes.get(shapeId);
+        if (shape == null || !shape.isStroke()) {
+            return;
+        }
+        if (live.add(shape)) {
+            // Finished, e.g. sent whole to a late joiner: keep it off the tiles, and take
+            // it back off if it was already rasterised
+            Rectangle bounds = shape.getBounds();
+            if (!unbaked.remove(shape)) {
+                damage(bounds);
+            }
+            repaintArea(bounds);
+        }
+        // From the last point already drawn, so the join to the new ones is repainted too
+        int from = shape.getPointCount() - 1;
+        append.accept(shape);
+        grid.update(shape);
+        repaintArea(shape.getBoundsFrom(from));
+    }
+
+    private void applyClear() {
         shapes.clear();
+        live.clear();
+        grid.clear();
+        invalidateTiles();
+        maxStrokeWidth = 0;
+        if (currentStroke != null) {
+            // The stroke under the mouse carries on; only what was drawn before goes.
+            // The server dropped it as an open stroke, so announce it again with its points so far.
+            addShape(currentStroke, true);
+            sendShape(currentStroke);
+        }
         repaint();
     }
 
+    private void applyRemoval(String shapeId) {
+        DrawingShape shape = shapes.get(shapeId);
+        if (shape != null) {
+            repaintArea(removeShape(shape));
+        }
+    }
+
     /**
-     * Remove a shape by ID (called when remote user erases)
+     * Adds a shape to the board
+     * @param open true for a stroke still being drawn, kept out of the tiles until finished
      */
-    public void removeShapeById(String shapeId) {
-        shapes.removeIf(shape -> shape.getId().equals(shapeId));
-        SwingUtilities.invokeLater(this::repaint);
+    private void addShape(DrawingShape shape, boolean open) {
+        shapes.put(shape.getId(), shape);
+        grid.add(shape);
+        maxStrokeWidth = Math.max(maxStrokeWidth, shape.strokeWidth);
+        if (open) {
+            live.add(shape);
+        } else {
+            unbaked.add(shape);
+        }
+    }
+
+    /**
+     * Moves a stroke that is done growing into the tiles, last in drawing order
+     */
+    private void finishShape(DrawingShape shape) {
+        if (live.remove(shape)) {
+            grid.add(shape);
+            unbaked.add(shape);
+        }
+    }
+
+    /**
+     * @return The area the shape covered
+     */
+    private Rectangle removeShape(DrawingShape shape) {
+        Rectangle bounds = shape.getBounds();
+        shapes.remove(shape.getId(), shape);
+        grid.remove(shape);
+        if (!live.remove(shape) && !unbaked.remove(shape)) {
+            // In the tiles, which can't take one shape back out: render them again
+            damage(bounds);
+        }
+        return bounds;
+    }
+
+    /**
+     * Adds a board area to be repainted with the rest changed this frame
+     */
+    private void repaintArea(Rectangle world) {
+        Rectangle area = toScreen(world);
+        if (dirty == null) {
+            dirty = area;
+        } else {
+            dirty.add(area);
+        }
+    }
+
+    /**
+     * Repaints where the tool preview was drawn and where it is drawn now
+     */
+    private void repaintPreview() {
+        Rectangle bounds = drawing && isShapeTool() ? previewBounds() : null;
+        if (previewBounds != null) {
+            repaintWorld(previewBounds);
+        }
+        if (bounds != null) {
+            repaintWorld(bounds);
+        }
+        previewBounds = bounds;
+    }
+
+    private boolean isShapeTool() {
+        String tool = app.getCurrentTool();
+        return tool.equals("LINE") || tool.equals("RECTANGLE") || tool.equals("CIRCLE") || tool.equals("TRIANGLE");
+    }
+
+    /**
+     * @return The area of the preview between startPoint and currentPoint
+     */
+    private Rectangle previewBounds() {
+        return previewShape().getBounds();
+    }
+
+    /**
+     * @return The shape the current tool would draw from startPoint to currentPoint; never sent,
+     * so it skips generating an id
+     */
+    private DrawingShape previewShape() {
+        return new DrawingShape("preview", app.getCurrentTool(), startPoint.x, startPoint.y,
+                currentPoint.x, currentPoint.y, app.getCurrentColor(), app.getStrokeWidth());
+    }
+
+    /**
+     * Drops the cached tiles under an area, to be rendered again from the shapes there
+     */
+    private void damage(Rectangle area) {
+        tiles.invalidate(area);
+    }
+
+    private void invalidateTiles() {
+        tiles.clear();
+        unbaked.clear();
+    }
+
+    /**
+     * Draws the finished shapes of a tile: those in the grid that aren't live
+     */
+    private void renderTile(Graphics2D g, Rectangle world) {
+        for (DrawingShape shape : grid.query(world)) {
+            if (!live.contains(shape)) {
+                shape.draw(g);
+            }
+        }
     }
 
     @Override
     protected void paintComponent(Graphics g) {
-        super.paintComponent(g);
-        Graphics2D g2d = (Graphics2D) g;
-        g2d.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
-
-        // Draw all shapes
-        for (DrawingShape shape : shapes) {
-            shape.draw(g2d);
-        }
-
-        // Draw preview for LINE, RECTANGLE, CIRCLE, and TRIANGLE
-        if (drawing && (app.getCurrentTool().equals("LINE") || app.getCurrentTool().equals("RECTANGLE")
-                || app.getCurrentTool().equals("CIRCLE") || app.getCurrentTool().equals("TRIANGLE"))) {
-            g2d.setColor(app.getCurrentColor());
-            g2d.setStroke(new BasicStroke(app.getStrokeWidth()));
-
-            if (app.getCurrentTool().equals("LINE")) {
-                g2d.drawLine(startPoint.x, startPoint.y, currentPoint.x, currentPoint.y);
-            } else if (app.getCurrentTool().equals("RECTANGLE")) {
-                int x = Math.min(startPoint.x, currentPoint.x);
-                int y = Math.min(startPoint.y, currentPoint.y);
-                int width = Math.abs(currentPoint.x - startPoint.x);
-                int height = Math.abs(currentPoint.y - startPoint.y);
-                g2d.drawRect(x, y, width, height);
-            } else if (app.getCurrentTool().equals("CIRCLE")) {
-                int x = Math.min(startPoint.x, currentPoint.x);
-                int y = Math.min(startPoint.y, currentPoint.y);
-                int width = Math.abs(currentPoint.x - startPoint.x);
-                int height = Math.abs(currentPoint.y - startPoint.y);
-                int size = Math.max(width, height);
-                g2d.drawOval(x, y, size, size);
-            } else if (app.getCurrentTool().equals("TRIANGLE")) {
-                int topX = startPoint.x + (currentPoint.x - startPoint.x) / 2;
-                int topY = Math.min(startPoint.y, currentPoint.y);
-                int bottomY = Math.max(startPoint.y, currentPoint.y);
-                int[] xPoints = { topX, startPoint.x, currentPoint.x };
-                int[] yPoints = { topY, bottomY, bottomY };
-                g2d.drawPolygon(xPoints, yPoints, 3);
+        // Shapes finished since the last paint go onto the tiles already cached;
+        // newest in drawing order, so on top of what is there
+        for (DrawingShape shape : unbaked) {
+            tiles.drawShape(shape);
+        }
+        unbaked.clear();
+
+        Rectangle clip = g.getClipBounds();
+        if (clip == null) {
+            clip = new Rectangle(0, 0, getWidth(), getHeight());
+        }
+        Graphics2D screen = (Graphics2D) g;
+        tiles.paint(screen, zoomLevel, zoom, panX, panY, clip, getBackground(), this::renderTile);
+
+        // The rest is drawn in world coordinates
+        Graphics2D g2d = (Graphics2D) g.create();
+        try {
+            g2d.translate(-panX, -panY);
+            g2d.scale(zoom, zoom);
+            g2d.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+            paintOverlay(g2d, toWorld(clip));
+        } finally {
+            g2d.dispose();
+        }
+    }
+
+    /**
+     * Draws the strokes still being drawn and the tool preview
+     * @param g2d Graphics in world coordinates
+     * @param clip The board area being repainted
+     */
+    private void paintOverlay(Graphics2D g2d, Rectangle clip) {
+        // Strokes still being drawn, where they meet the area being repainted
+        for (DrawingShape shape : live) {
+            if (shape.getBounds().intersects(clip)) {
+                shape.draw(g2d);
             }
         }
+
+        // Preview of the LINE, RECTANGLE, CIRCLE or TRIANGLE being dragged out, drawn as the
+        // finished shape will be: round caps and joins, which previewBounds() covers
+        if (drawing && isShapeTool()) {
+            previewShape().draw(g2d);
+        }
     }
 }
\ No newline at end of file
@@ -2,6 +2,7 @@ package com.whiteboard.client.ui;
 
 import java.awt.*;
 import java.io.Serializable;
+import java.util.Arrays;
 import java.util.UUID;
 
 /**
@@ -15,6 +16,10 @@ public class DrawingShape implements Serializable {
     int x1, y1, x2, y2;
     Color color;
     int strokeWidth;
+    // Polyline for STROKE shapes; x1,y1 / x2,y2 hold its first and last point
+    int[] xPoints;
+    int[] yPoints;
+    int pointCount;
 
     public DrawingShape(String type, int x1, int y1, int x2, int y2, Color color, int strokeWidth) {
         this.id = UUID.randomUUID().toString();
@@ -38,6 +43,121 @@ public class DrawingShape implements Serializable {
         this.strokeWidth = strokeWidth;
     }
 
+    /**
+     * Creates a freehand stroke starting at a single point.
+     * Further points are added with {@link #appendPoint(int, int)}.
+     */
+    public static DrawingShape newStroke(int x, int y, Color color, int strokeWidth) {
+        DrawingShape stroke = new DrawingShape("STROKE", x, y, x, y, color, strokeWidth);
+        stroke.xPoints = new int[16];
+        stroke.yPoints = new int[16];
+        stroke.appendPoint(x, y);
+        return stroke;
+    }
+
+    /**
+     * Creates a STROKE received whole, taking over its point arrays.
+     * x1,y1 / x2,y2 come from the first and last point.
+     */
+    public static DrawingShape stroke(String id, int[] xPoints, int[] yPoints, Color color, int strokeWidth) {
+        int last = xPoints.length - 1;
+        DrawingShape stroke = last < 0
+                ? new DrawingShape(id, "STROKE", 0, 0, 0, 0, color, strokeWidth)
+                : new DrawingShape(id, "STROKE", xPoints[0], yPoints[0], xPoints[last], yPoints[last],
+                        color, strokeWidth);
+        stroke.xPoints = xPoints;
+        stroke.yPoints = yPoints;
+        stroke.pointCount = xPoints.length;
+        return stroke;
+    }
+
+    /**
+     * Adds a point to the end of a STROKE.
+     */
+    public void appendPoint(int x, int y) {
+        if (pointCount == xPoints.length) {
+            xPoints = Arrays.copyOf(xPoints, pointCount * 2);
+            yPoints = Arrays.copyOf(yPoints, pointCount * 2);
+        }
+        xPoints[pointCount] = x;
+        yPoints[pointCount] = y;
+        pointCount++;
+        x2 = x;
+        y2 = y;
+    }
+
+    /**
+     * Adds points in the wire format (x,y;x,y;...) to the end of a STROKE.
+     */
+    public void appendPoints(String points) {
+        for (String pair : points.split(";")) {
+            int comma = pair.indexOf(',');
+            appendPoint(Integer.parseInt(pair.substring(0, comma)), Integer.parseInt(pair.substring(comma + 1)));
+        }
+    }
+
+    /**
+     * Adds points to the end of a STROKE.
+     */
+    public void appendPoints(int[] xs, int[] ys) {
+        for (int i = 0; i < xs.length; i++) {
+            appendPoint(xs[i], ys[i]);
+        }
+    }
+
+    public boolean isStroke() {
+        return xPoints != null;
+    }
+
+    public int getPointCount() {
+        return pointCount;
+    }
+
+    /**
+     * @return The area the shape paints, including its stroke width
+     */
+    public Rectangle getBounds() {
+        return getBoundsFrom(0);
+    }
+
+    /**
+     * @param fromPoint First point of a STROKE to cover; ignored for other shapes
+     * @return The area the shape paints from that point on, including its stroke width
+     */
+    public Rectangle getBoundsFrom(int fromPoint) {
+        int minX, minY, maxX, maxY;
+        if (type.equals("STROKE") || isStroke()) {
+            if (pointCount == 0 || xPoints == null) {
+                // No points to paint
+                return new Rectangle();
+            }
+            int first = Math.max(0, Math.min(fromPoint, pointCount - 1));
+            minX = maxX = xPoints[first];
+            minY = maxY = yPoints[first];
+            for (int i = first + 1; i < pointCount; i++) {
+                minX = Math.min(minX, xPoints[i]);
+                maxX = Math.max(maxX, xPoints[i]);
+                minY = Math.min(minY, yPoints[i]);
+                maxY = Math.max(maxY, yPoints[i]);
+            }
+        } else if (type.equals("CIRCLE")) {
+            // Drawn as a circle of the larger side, from the top-left corner
+            int size = Math.max(Math.abs(x2 - x1), Math.abs(y2 - y1));
+            minX = Math.min(x1, x2);
+            minY = Math.min(y1, y2);
+            maxX = minX + size;
+            maxY = minY + size;
+        } else {
+            minX = Math.min(x1, x2);
+            minY = Math.min(y1, y2);
+            maxX = Math.max(x1, x2);
+            maxY = Math.max(y1, y2);
+        }
+        // Half the pen on each side, plus a pixel for antialiasing
+        int pad = strokeWidth / 2 + 2;
+        return new Rectangle(minX - pad, minY - pad, maxX - minX + 2 * pad, maxY - minY + 2 * pad);
+    }
+
     public void draw(Graphics2D g2d) {
         g2d.setColor(color);
         g2d.setStroke(new BasicStroke(strokeWidth, BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND));
@@ -47,6 +167,16 @@ public class DrawingShape implements Serializable {
             case "ERASER":
                 g2d.drawLine(x1, y1, x2, y2);
                 break;
+            case "STROKE":
+                if (pointCount == 0 || xPoints == null) {
+                    break;
+                }
+                if (pointCount == 1) {
+                    g2d.drawLine(x1, y1, x1, y1);
+                } else {
+                    g2d.drawPolyline(xPoints, yPoints, pointCount);
+                }
+                break;
             case "LINE":
                 g2d.drawLine(x1, y1, x2, y2);
                 break;
@@ -84,10 +214,22 @@ public class DrawingShape implements Serializable {
     }
 
     public String serialize() {
-        return String.format("%s:%s:%d:%d:%d:%d:%d,%d,%d:%d",
+        String base = String.format("%s:%s:%d:%d:%d:%d:%d,%d,%d:%d",
                 id, type, x1, y1, x2, y2,
                 color.getRed(), color.getGreen(), color.getBlue(),
                 strokeWidth);
+        if (!isStroke()) {
+            return base;
+        }
+        // STROKE adds its point list as a ninth field
+        StringBuilder line = new StringBuilder(base).append(':');
+        for (int i = 0; i < pointCount; i++) {
+            if (i > 0) {
+                line.append(';');
+            }
+            line.append(xPoints[i]).append(',').append(yPoints[i]);
+        }
+        return line.toString();
     }
 
     public static DrawingShape deserialize(String data) {
@@ -110,7 +252,17 @@ public class DrawingShape implements Serializable {
 
                 int strokeWidth = Integer.parseInt(parts[7]);  // Stroke width moved to index 7
 
-                return new DrawingShape(id, type, x1, y1, x2, y2, color, strokeWidth);
+                DrawingShape shape = new DrawingShape(id, type, x1, y1, x2, y2, color, strokeWidth);
+                if (type.equals("STROKE")) {
+                    if (parts.length < 9) {
+                        System.err.println("Ignoring stroke without points: " + id);
+                        return null;
+                    }
+                    shape.xPoints = new int[16];
+                    shape.yPoints = new int[16];
+                    shape.appendPoints(parts[8]);
+                }
+                return shape;
             }
         } catch (Exception e) {
             System.err.println("Error deserializing shape: " + e.getMessage());
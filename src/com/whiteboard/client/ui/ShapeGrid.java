@@ -0,0 +1,191 @@
+package com.whiteboard.client.ui;
+
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Uniform grid over the shapes' bounding boxes, so the eraser and partial
+ * repaints look only at shapes near a point or area instead of every shape.
+ * Each shape is listed in every CELL_SIZE cell its bounds touch; shapes
+ * spanning more than MAX_CELLS cells are kept apart and always returned.
+ *
+ * Query results come back in the order shapes were added, which is their
+ * drawing order. Not thread-safe: used on the thread that owns the canvas.
+ */
+final class ShapeGrid {
+
+    private static final int CELL_SIZE = 64;
+    private static final int MAX_CELLS = 256;
+
+    // Packed cell coordinates -> shapes whose bounds touch it
+    private final Map<Long, List<DrawingShape>> cells = new HashMap<>();
+    private final Map<DrawingShape, Entry> entries = new IdentityHashMap<>();
+    private final List<DrawingShape> large = new ArrayList<>();
+    private long nextOrder;
+
+    /**
+     * Indexes a shape, or moves it last in drawing order if already indexed
+     */
+    void add(DrawingShape shape) {
+        remove(shape);
+        Entry entry = new Entry(shape.getBounds(), nextOrder++);
+        entries.put(shape, entry);
+        place(shape, entry.bounds, null);
+    }
+
+    /**
+     * Extends a shape's cells after it grew, e.g. a stroke that gained points.
+     * Cells it no longer touches keep it until it is removed; queries filter those out.
+     */
+    void update(DrawingShape shape) {
+        Entry entry = entries.get(shape);
+        if (entry == null) {
+            return;
+        }
+        Rectangle old = entry.bounds;
+        Rectangle grown = old.union(shape.getBounds());
+        if (grown.equals(old)) {
+            return;
+        }
+        entry.bounds = grown;
+        if (large.contains(shape)) {
+            return;
+        }
+        if (cellCount(grown) > MAX_CELLS) {
+            unplace(shape, old);
+            large.add(shape);
+        } else {
+            place(shape, grown, old);
+        }
+    }
+
+    void remove(DrawingShape shape) {
+        Entry entry = entries.remove(shape);
+        if (entry != null && !large.remove(shape)) {
+            unplace(shape, entry.bounds);
+        }
+    }
+
+    void clear() {
+        cells.clear();
+        entries.clear();
+        large.clear();
+    }
+
+    /**
+     * @return Shapes whose bounds intersect the area, in drawing order
+     */
+    List<DrawingShape> query(Rectangle area) {
+        Map<DrawingShape, Entry> found = new IdentityHashMap<>();
+        for (DrawingShape shape : large) {
+            collect(shape, area, found);
+        }
+        int x0 = cell(area.x), x1 = cell(area.x + area.width);
+        int y0 = cell(area.y), y1 = cell(area.y + area.height);
+        if ((long) (x1 - x0 + 1) * (y1 - y0 + 1) > cells.size()) {
+            // Bigger than the populated part of the grid: walk the cells there are
+            for (List<DrawingShape> shapes : cells.values()) {
+                for (DrawingShape shape : shapes) {
+                    collect(shape, area, found);
+                }
+            }
+        } else {
+            for (int cy = y0; cy <= y1; cy++) {
+                for (int cx = x0; cx <= x1; cx++) {
+                    List<DrawingShape> shapes = cells.get(key(cx, cy));
+                    if (shapes != null) {
+                        for (DrawingShape shape : shapes) {
+                            collect(shape, area, found);
+                        }
+                    }
+                }
+            }
+        }
+        List<DrawingShape> result = new ArrayList<>(found.keySet());
+        result.sort(Comparator.comparingLong(shape -> found.get(shape).order));
+        return result;
+    }
+
+    private void collect(DrawingShape shape, Rectangle area, Map<DrawingShape, Entry> found) {
+        Entry entry = entries.get(shape);
+        if (entry != null && entry.bounds.intersects(area)) {
+            found.put(shape, entry);
+        }
+    }
+
+    /**
+     * Lists the shape in the cells of bounds, skipping those of skip, which already have it
+     */
+    private void place(DrawingShape shape, Rectangle bounds, Rectangle skip) {
+        if (skip == null && cellCount(bounds) > MAX_CELLS) {
+            large.add(shape);
+            return;
+        }
+        for (int cy = cell(bounds.y); cy <= cell(bounds.y + bounds.height); cy++) {
+            for (int cx = cell(bounds.x); cx <= cell(bounds.x + bounds.width); cx++) {
+                if (skip != null && inCells(skip, cx, cy)) {
+                    continue;
+                }
+                cells.computeIfAbsent(key(cx, cy), k -> new ArrayList<>(4)).add(shape);
+            }
+        }
+    }
+
+    private void unplace(DrawingShape shape, Rectangle bounds) {
+        for (int cy = cell(bounds.y); cy <= cell(bounds.y + bounds.height); cy++) {
+            for (int cx = cell(bounds.x); cx <= cell(bounds.x + bounds.width); cx++) {
+                Long key = key(cx, cy);
+                List<DrawingShape> shapes = cells.get(key);
+                if (shapes == null) {
+                    continue;
+                }
+                // Identity, not equals: the list is searched from the end, where recent shapes are
+                for (int i = shapes.size() - 1; i >= 0; i--) {
+                    if (shapes.get(i) == shape) {
+                        shapes.remove(i);
+                        break;
+                    }
+                }
+                if (shapes.isEmpty()) {
+                    cells.remove(key);
+                }
+            }
+        }
+    }
+
+    private static boolean inCells(Rectangle bounds, int cx, int cy) {
+        return cx >= cell(bounds.x) && cx <= cell(bounds.x + bounds.width)
+                && cy >= cell(bounds.y) && cy <= cell(bounds.y + bounds.height);
+    }
+
+    private static long cellCount(Rectangle bounds) {
+        return (long) (cell(bounds.x + bounds.width) - cell(bounds.x) + 1)
+                * (cell(bounds.y + bounds.height) - cell(bounds.y) + 1);
+    }
+
+    private static int cell(int coordinate) {
+        return Math.floorDiv(coordinate, CELL_SIZE);
+    }
+
+    private static Long key(int cx, int cy) {
+        return ((long) cx << 32) | (cy & 0xffffffffL);
+    }
+
+    /**
+     * Where a shape is indexed and its place in drawing order
+     */
+    private static final class Entry {
+        private Rectangle bounds;
+        private final long order;
+
+        Entry(Rectangle bounds, long order) {
+            this.bounds = bounds;
+            this.order = order;
+        }
+    }
+}
@@ -0,0 +1,202 @@
+package com.whiteboard.client.ui;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Raster tiles of the board, TILE_SIZE screen pixels square, cached per zoom
+ * level. Tiles are laid out on a fixed grid in each level's pixel space, so
+ * panning only blits tiles to new positions and renders the few that scroll
+ * into view. The least recently drawn tiles are dropped once the cache holds
+ * more than BUDGET_BYTES of them.
+ *
+ * A finished shape is drawn onto the cached tiles it overlaps; an erase drops
+ * just the tiles it touched, to be rendered again when next shown. Not
+ * thread-safe: used on the EDT.
+ */
+final class TileCache {
+
+    static final int TILE_SIZE = 256;
+    private static final long BUDGET_BYTES = 64L * 1024 * 1024;
+
+    /**
+     * Draws the board's finished shapes, in world coordinates
+     */
+    interface Renderer {
+        /**
+         * @param g Graphics already transformed to world coordinates and clipped to the tile
+         * @param world The world area the tile covers
+         */
+        void render(Graphics2D g, Rectangle world);
+    }
+
+    private final Map<Key, Tile> tiles = new LinkedHashMap<Key, Tile>(64, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key, Tile> eldest) {
+            return size() > maxTiles;
+        }
+    };
+    // Device pixels per screen pixel the tiles were rendered at
+    private double deviceScale = 1;
+    private int maxTiles = tilesInBudget(1);
+
+    /**
+     * Draws the tiles covering a screen area, rendering those not cached
+     * @param g Screen graphics
+     * @param level Zoom level, which keys the cache
+     * @param zoom Screen pixels per world unit at that level
+     * @param panX Level pixel shown at the left edge of the screen
+     * @param panY Level pixel shown at the top edge of the screen
+     * @param area Screen area to cover
+     */
+    void paint(Graphics2D g, int level, double zoom, int panX, int panY, Rectangle area,
+               Color background, Renderer renderer) {
+        double scale = g.getTransform().getScaleX();
+        if (scale != deviceScale) {
+            // Moved to a screen of another density: the cached tiles are the wrong resolution
+            tiles.clear();
+            deviceScale = scale;
+            maxTiles = tilesInBudget(scale);
+        }
+        int tx0 = Math.floorDiv(area.x + panX, TILE_SIZE);
+        int tx1 = Math.floorDiv(area.x + area.width - 1 + panX, TILE_SIZE);
+        int ty0 = Math.floorDiv(area.y + panY, TILE_SIZE);
+        int ty1 = Math.floorDiv(area.y + area.height - 1 + panY, TILE_SIZE);
+        for (int ty = ty0; ty <= ty1; ty++) {
+            for (int tx = tx0; tx <= tx1; tx++) {
+                Key key = new Key(level, tx, ty);
+                Tile tile = tiles.get(key);
+                if (tile == null) {
+                    tile = new Tile(tx, ty, zoom);
+                    render(tile, background, renderer);
+                    tiles.put(key, tile);
+                }
+                g.drawImage(tile.image, tx * TILE_SIZE - panX, ty * TILE_SIZE - panY, TILE_SIZE, TILE_SIZE, null);
+            }
+        }
+    }
+
+    /**
+     * Draws a newly finished shape onto the cached tiles it overlaps. Tiles
+     * rendered later pick it up from the renderer.
+     */
+    void drawShape(DrawingShape shape) {
+        Rectangle bounds = shape.getBounds();
+        for (Tile tile : tiles.values()) {
+            if (tile.world.intersects(bounds)) {
+                Graphics2D g = tile.createGraphics(deviceScale);
+                try {
+                    shape.draw(g);
+                } finally {
+                    g.dispose();
+                }
+            }
+        }
+    }
+
+    /**
+     * Drops the cached tiles, at every zoom level, that overlap a world area
+     */
+    void invalidate(Rectangle world) {
+        for (Iterator<Tile> it = tiles.values().iterator(); it.hasNext(); ) {
+            if (it.next().world.intersects(world)) {
+                it.remove();
+            }
+        }
+    }
+
+    void clear() {
+        tiles.clear();
+    }
+
+    private void render(Tile tile, Color background, Renderer renderer) {
+        int pixels = (int) Math.ceil(TILE_SIZE * deviceScale);
+        tile.image = new BufferedImage(pixels, pixels, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = tile.image.createGraphics();
+        try {
+            g.setColor(background);
+            g.fillRect(0, 0, pixels, pixels);
+        } finally {
+            g.dispose();
+        }
+        g = tile.createGraphics(deviceScale);
+        try {
+            renderer.render(g, tile.world);
+        } finally {
+            g.dispose();
+        }
+    }
+
+    private static int tilesInBudget(double scale) {
+        long tileBytes = 4L * (long) Math.ceil(TILE_SIZE * scale) * (long) Math.ceil(TILE_SIZE * scale);
+        return (int) Math.max(32, BUDGET_BYTES / tileBytes);
+    }
+
+    /**
+     * A tile's place: zoom level and column and row in that level's pixel space
+     */
+    private static final class Key {
+        private final int level;
+        private final int tx;
+        private final int ty;
+
+        Key(int level, int tx, int ty) {
+            this.level = level;
+            this.tx = tx;
+            this.ty = ty;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return level == other.level && tx == other.tx && ty == other.ty;
+        }
+
+        @Override
+        public int hashCode() {
+            return (level * 31 + tx) * 31 + ty;
+        }
+    }
+
+    private static final class Tile {
+        private final int tx;
+        private final int ty;
+        private final double zoom;
+        // World area the tile shows, rounded out to whole units
+        private final Rectangle world;
+        private BufferedImage image;
+
+        Tile(int tx, int ty, double zoom) {
+            this.tx = tx;
+            this.ty = ty;
+            this.zoom = zoom;
+            int x0 = (int) Math.floor(tx * TILE_SIZE / zoom);
+            int y0 = (int) Math.floor(ty * TILE_SIZE / zoom);
+            int x1 = (int) Math.ceil((tx + 1) * TILE_SIZE / zoom);
+            int y1 = (int) Math.ceil((ty + 1) * TILE_SIZE / zoom);
+            this.world = new Rectangle(x0, y0, x1 - x0, y1 - y0);
+        }
+
+        /**
+         * @return Graphics on the tile's image in world coordinates, clipped to the tile
+         */
+        Graphics2D createGraphics(double deviceScale) {
+            Graphics2D g = image.createGraphics();
+            g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+            g.scale(deviceScale, deviceScale);
+            g.clipRect(0, 0, TILE_SIZE, TILE_SIZE);
+            g.translate(-tx * TILE_SIZE, -ty * TILE_SIZE);
+            g.scale(zoom, zoom);
+            return g;
+        }
+    }
+}
@@ -0,0 +1,552 @@
+package com.whiteboard.common.protocol;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.UUID;
+
+/**
+ * Compact binary encoding of the text protocol.
+ *
+ * A binary frame is a version marker byte, a varint payload length and the
+ * payload. The marker is a control character no text line starts with, so
+ * text lines and binary frames can be mixed on one stream. The payload
+ * starts with a message tag:
+ * <ul>
+ *   <li>SHAPE: id, type tag, zigzag-varint x1 y1 x2 y2, packed ARGB, varint stroke width,
+ *       and for STROKE shapes a delta-encoded point list</li>
+ *   <li>APPEND: id and delta-encoded points added to an open stroke</li>
+ *   <li>STROKE_END: id</li>
+ *   <li>DELETE: id</li>
+ *   <li>CLEAR</li>
+ *   <li>TEXT: any other line as UTF-8 (presence, acks, unknown shape types)</li>
+ * </ul>
+ * Ids that are canonical UUIDs are sent as 16 raw bytes, anything else as a
+ * length-prefixed string. Frames are stateless so one encoding can be shared
+ * by every recipient. Decoding yields either the exact original text line,
+ * which keeps text clients, history and persistence unchanged, or the
+ * decoded fields handed straight to a {@link MessageHandler}.
+ */
+public final class BinaryCodec {
+
+    /** Marker byte that starts a version 1 binary frame. */
+    public static final int FRAME_V1 = 0x01;
+
+    /** Protocol name a client asks for at JOIN to receive binary frames. */
+    public static final String PROTOCOL_V1 = "bin1";
+
+    /** Upper bound on a single payload, matching the text line limit. */
+    public static final int MAX_PAYLOAD_LENGTH = 1024 * 1024;
+
+    private static final int MSG_TEXT = 0;
+    private static final int MSG_SHAPE = 1;
+    private static final int MSG_DELETE = 2;
+    private static final int MSG_CLEAR = 3;
+    private static final int MSG_APPEND = 4;
+    private static final int MSG_STROKE_END = 5;
+
+    private static final int ID_UUID = 0;
+    private static final int ID_STRING = 1;
+
+    private static final String[] SHAPE_TYPES = {
+            null, "PEN", "LINE", "RECTANGLE", "CIRCLE", "TRIANGLE", "ERASER", "STROKE"
+    };
+    private static final int STROKE_TAG = 7;
+
+    /**
+     * Receives decoded messages as fields, without building their text lines.
+     */
+    public interface MessageHandler {
+        /**
+         * A shape. Points are set for STROKE shapes only.
+         * @param rgb Color as 0xRRGGBB
+         * @param xPoints Stroke x coordinates, or null
+         * @param yPoints Stroke y coordinates, or null
+         */
+        void shape(String id, String type, int x1, int y1, int x2, int y2, int rgb, int strokeWidth,
+                   int[] xPoints, int[] yPoints);
+
+        /** Points added to an open stroke. */
+        void append(String id, int[] xPoints, int[] yPoints);
+
+        void strokeEnd(String id);
+
+        void delete(String id);
+
+        void clear();
+
+        /** Any other message, as its text line. */
+        void text(String line);
+    }
+
+    private BinaryCodec() {
+        // Utility class - prevent instantiation
+    }
+
+    /**
+     * Encodes a text protocol line as a complete binary frame.
+     * @param line The line, without a trailing newline
+     * @return Marker, payload length and payload
+     */
+    public static byte[] encodeFrame(String line) {
+        ByteWriter payload = new ByteWriter(48);
+        if (!encodeStructured(line, payload)) {
+            payload.reset();
+            payload.writeByte(MSG_TEXT);
+            payload.writeBytes(line.getBytes(StandardCharsets.UTF_8));
+        }
+
+        ByteWriter frame = new ByteWriter(payload.size() + 6);
+        frame.writeByte(FRAME_V1);
+        frame.writeVarint(payload.size());
+        frame.writeBytes(payload.buffer(), 0, payload.size());
+        return frame.toByteArray();
+    }
+
+    private static boolean encodeStructured(String line, ByteWriter out) {
+        if (line.equals("CLEAR")) {
+            out.writeByte(MSG_CLEAR);
+            return true;
+        }
+        if (line.startsWith("DELETE:")) {
+            out.writeByte(MSG_DELETE);
+            writeId(line.substring(7), out);
+            return true;
+        }
+        if (line.startsWith("STROKE_END:")) {
+            out.writeByte(MSG_STROKE_END);
+            writeId(line.substring(11), out);
+            return true;
+        }
+        if (line.startsWith("APPEND:")) {
+            int idEnd = line.indexOf(':', 7);
+            if (idEnd < 0) {
+                return false;
+            }
+            out.writeByte(MSG_APPEND);
+            writeId(line.substring(7, idEnd), out);
+            try {
+                return writePoints(line.substring(idEnd + 1), out);
+            } catch (NumberFormatException e) {
+                return false;
+            }
+        }
+        return encodeShape(line, out);
+    }
+
+    /**
+     * Encodes id:TYPE:x1:y1:x2:y2:r,g,b:width, plus :points for STROKE shapes.
+     * Returns false, leaving out in an undefined state, if the line isn't
+     * exactly in that canonical form.
+     */
+    private static boolean encodeShape(String line, ByteWriter out) {
+        String[] parts = line.split(":", -1);
+        if (parts.length != 8 && parts.length != 9) {
+            return false;
+        }
+        int typeTag = shapeTypeTag(parts[1]);
+        if (typeTag < 0 || (typeTag == STROKE_TAG) != (parts.length == 9)) {
+            return false;
+        }
+        String[] rgb = parts[6].split(",", -1);
+        if (rgb.length != 3) {
+            return false;
+        }
+        try {
+            int x1 = parseCanonical(parts[2]);
+            int y1 = parseCanonical(parts[3]);
+            int x2 = parseCanonical(parts[4]);
+            int y2 = parseCanonical(parts[5]);
+            int r = parseCanonical(rgb[0]);
+            int g = parseCanonical(rgb[1]);
+            int b = parseCanonical(rgb[2]);
+            int strokeWidth = parseCanonical(parts[7]);
+            if ((r | g | b) >>> 8 != 0 || strokeWidth < 0) {
+                return false;
+            }
+
+            out.writeByte(MSG_SHAPE);
+            writeId(parts[0], out);
+            out.writeByte(typeTag);
+            out.writeZigZag(x1);
+            out.writeZigZag(y1);
+            out.writeZigZag(x2);
+            out.writeZigZag(y2);
+            out.writeInt(0xFF000000 | (r << 16) | (g << 8) | b);
+            out.writeVarint(strokeWidth);
+            return typeTag != STROKE_TAG || writePoints(parts[8], out);
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Writes x,y;x,y;... as a count, the first point and zigzag deltas.
+     * @return false if there are no points or a coordinate pair is malformed
+     */
+    private static boolean writePoints(String points, ByteWriter out) {
+        String[] pairs = points.split(";", -1);
+        if (points.isEmpty()) {
+            return false;
+        }
+        out.writeVarint(pairs.length);
+        int lastX = 0;
+        int lastY = 0;
+        for (String pair : pairs) {
+            int comma = pair.indexOf(',');
+            if (comma < 0) {
+                return false;
+            }
+            int x = parseCanonical(pair.substring(0, comma));
+            int y = parseCanonical(pair.substring(comma + 1));
+            out.writeZigZag(x - lastX);
+            out.writeZigZag(y - lastY);
+            lastX = x;
+            lastY = y;
+        }
+        return true;
+    }
+
+    /**
+     * Parses an int only if formatting it back gives the same string,
+     * so the decoded line is byte-for-byte identical to the original.
+     */
+    private static int parseCanonical(String value) {
+        int parsed = Integer.parseInt(value);
+        if (!Integer.toString(parsed).equals(value)) {
+            throw new NumberFormatException("Non-canonical number: " + value);
+        }
+        return parsed;
+    }
+
+    private static int shapeTypeTag(String type) {
+        for (int i = 1; i < SHAPE_TYPES.length; i++) {
+            if (SHAPE_TYPES[i].equals(type)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static void writeId(String id, ByteWriter out) {
+        if (id.length() == 36) {
+            try {
+                UUID uuid = UUID.fromString(id);
+                if (uuid.toString().equals(id)) {
+                    out.writeByte(ID_UUID);
+                    out.writeLong(uuid.getMostSignificantBits());
+                    out.writeLong(uuid.getLeastSignificantBits());
+                    return;
+                }
+            } catch (IllegalArgumentException e) {
+                // Not a UUID, fall through
+            }
+        }
+        byte[] bytes = id.getBytes(StandardCharsets.UTF_8);
+        out.writeByte(ID_STRING);
+        out.writeVarint(bytes.length);
+        out.writeBytes(bytes);
+    }
+
+    /**
+     * Decodes a frame payload (without marker and length) back into its text line.
+     * @param data Buffer holding the payload
+     * @param offset Start of the payload
+     * @param length Payload length
+     * @return The original text line
+     * @throws IllegalArgumentException If the payload is malformed
+     */
+    public static String decodePayload(byte[] data, int offset, int length) {
+        ByteReader in = new ByteReader(data, offset, length);
+        int tag = in.readByte();
+        switch (tag) {
+            case MSG_TEXT:
+                return new String(data, offset + 1, length - 1, StandardCharsets.UTF_8);
+            case MSG_CLEAR:
+                return "CLEAR";
+            case MSG_DELETE:
+                return "DELETE:" + readId(in);
+            case MSG_STROKE_END:
+                return "STROKE_END:" + readId(in);
+            case MSG_APPEND: {
+                StringBuilder line = new StringBuilder("APPEND:").append(readId(in)).append(':');
+                readPoints(in, line);
+                return line.toString();
+            }
+            case MSG_SHAPE:
+                return decodeShape(in);
+            default:
+                throw new IllegalArgumentException("Unknown binary message tag: " + tag);
+        }
+    }
+
+    /**
+     * Decodes a frame payload (without marker and length) straight into handler calls.
+     * @param data Buffer holding the payload
+     * @param offset Start of the payload
+     * @param length Payload length
+     * @param handler Receives the decoded message
+     * @throws IllegalArgumentException If the payload is malformed
+     */
+    public static void decodePayload(byte[] data, int offset, int length, MessageHandler handler) {
+        ByteReader in = new ByteReader(data, offset, length);
+        int tag = in.readByte();
+        switch (tag) {
+            case MSG_TEXT:
+                handler.text(new String(data, offset + 1, length - 1, StandardCharsets.UTF_8));
+                break;
+            case MSG_CLEAR:
+                handler.clear();
+                break;
+            case MSG_DELETE:
+                handler.delete(readId(in));
+                break;
+            case MSG_STROKE_END:
+                handler.strokeEnd(readId(in));
+                break;
+            case MSG_APPEND: {
+                String id = readId(in);
+                int[][] points = readPoints(in);
+                handler.append(id, points[0], points[1]);
+                break;
+            }
+            case MSG_SHAPE: {
+                String id = readId(in);
+                int typeTag = readShapeType(in);
+                int x1 = in.readZigZag();
+                int y1 = in.readZigZag();
+                int x2 = in.readZigZag();
+                int y2 = in.readZigZag();
+                int argb = in.readInt();
+                int strokeWidth = in.readVarint();
+                int[][] points = typeTag == STROKE_TAG ? readPoints(in) : new int[2][];
+                handler.shape(id, SHAPE_TYPES[typeTag], x1, y1, x2, y2, argb & 0xFFFFFF, strokeWidth,
+                        points[0], points[1]);
+                break;
+            }
+            default:
+                throw new IllegalArgumentException("Unknown binary message tag: " + tag);
+        }
+    }
+
+    private static int readShapeType(ByteReader in) {
+        int typeTag = in.readByte();
+        if (typeTag <= 0 || typeTag >= SHAPE_TYPES.length) {
+            throw new IllegalArgumentException("Unknown shape type tag: " + typeTag);
+        }
+        return typeTag;
+    }
+
+    private static String decodeShape(ByteReader in) {
+        String id = readId(in);
+        int typeTag = readShapeType(in);
+        int x1 = in.readZigZag();
+        int y1 = in.readZigZag();
+        int x2 = in.readZigZag();
+        int y2 = in.readZigZag();
+        int argb = in.readInt();
+        int strokeWidth = in.readVarint();
+
+        StringBuilder line = new StringBuilder(id.length() + 48);
+        line.append(id).append(':').append(SHAPE_TYPES[typeTag])
+                .append(':').append(x1).append(':').append(y1)
+                .append(':').append(x2).append(':').append(y2)
+                .append(':').append((argb >> 16) & 0xFF)
+                .append(',').append((argb >> 8) & 0xFF)
+                .append(',').append(argb & 0xFF)
+                .append(':').append(strokeWidth);
+        if (typeTag == STROKE_TAG) {
+            line.append(':');
+            readPoints(in, line);
+        }
+        return line.toString();
+    }
+
+    private static void readPoints(ByteReader in, StringBuilder line) {
+        int count = in.readVarint();
+        if (count <= 0) {
+            throw new IllegalArgumentException("Empty point list");
+        }
+        int x = 0;
+        int y = 0;
+        for (int i = 0; i < count; i++) {
+            x += in.readZigZag();
+            y += in.readZigZag();
+            if (i > 0) {
+                line.append(';');
+            }
+            line.append(x).append(',').append(y);
+        }
+    }
+
+    /**
+     * @return The x coordinates and the y coordinates of a point list
+     */
+    private static int[][] readPoints(ByteReader in) {
+        int count = in.readVarint();
+        if (count <= 0) {
+            throw new IllegalArgumentException("Empty point list");
+        }
+        // Each point takes at least two bytes, so a bad count can't allocate much
+        in.require(2L * count);
+        int[] xs = new int[count];
+        int[] ys = new int[count];
+        int x = 0;
+        int y = 0;
+        for (int i = 0; i < count; i++) {
+            x += in.readZigZag();
+            y += in.readZigZag();
+            xs[i] = x;
+            ys[i] = y;
+        }
+        return new int[][] {xs, ys};
+    }
+
+    private static String readId(ByteReader in) {
+        int kind = in.readByte();
+        if (kind == ID_UUID) {
+            return new UUID(in.readLong(), in.readLong()).toString();
+        }
+        if (kind == ID_STRING) {
+            int length = in.readVarint();
+            return in.readString(length);
+        }
+        throw new IllegalArgumentException("Unknown id encoding: " + kind);
+    }
+
+    /**
+     * Minimal growable big-endian byte writer.
+     */
+    private static final class ByteWriter {
+        private byte[] buffer;
+        private int size;
+
+        ByteWriter(int capacity) {
+            buffer = new byte[capacity];
+        }
+
+        void writeByte(int b) {
+            ensure(1);
+            buffer[size++] = (byte) b;
+        }
+
+        void writeBytes(byte[] bytes) {
+            writeBytes(bytes, 0, bytes.length);
+        }
+
+        void writeBytes(byte[] bytes, int offset, int length) {
+            ensure(length);
+            System.arraycopy(bytes, offset, buffer, size, length);
+            size += length;
+        }
+
+        void writeVarint(int value) {
+            ensure(5);
+            while ((value & ~0x7F) != 0) {
+                buffer[size++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            buffer[size++] = (byte) value;
+        }
+
+        void writeZigZag(int value) {
+            writeVarint((value << 1) ^ (value >> 31));
+        }
+
+        void writeInt(int value) {
+            ensure(4);
+            buffer[size++] = (byte) (value >>> 24);
+            buffer[size++] = (byte) (value >>> 16);
+            buffer[size++] = (byte) (value >>> 8);
+            buffer[size++] = (byte) value;
+        }
+
+        void writeLong(long value) {
+            writeInt((int) (value >>> 32));
+            writeInt((int) value);
+        }
+
+        void reset() {
+            size = 0;
+        }
+
+        int size() {
+            return size;
+        }
+
+        byte[] buffer() {
+            return buffer;
+        }
+
+        byte[] toByteArray() {
+            return size == buffer.length ? buffer : Arrays.copyOf(buffer, size);
+        }
+
+        private void ensure(int extra) {
+            if (size + extra > buffer.length) {
+                buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, size + extra));
+            }
+        }
+    }
+
+    /**
+     * Bounds-checked reader over a payload slice.
+     */
+    private static final class ByteReader {
+        private final byte[] data;
+        private final int end;
+        private int position;
+
+        ByteReader(byte[] data, int offset, int length) {
+            this.data = data;
+            this.position = offset;
+            this.end = offset + length;
+        }
+
+        int readByte() {
+            require(1);
+            return data[position++] & 0xFF;
+        }
+
+        int readVarint() {
+            int value = 0;
+            for (int shift = 0; shift < 35; shift += 7) {
+                int b = readByte();
+                value |= (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IllegalArgumentException("Varint too long");
+        }
+
+        int readZigZag() {
+            int raw = readVarint();
+            return (raw >>> 1) ^ -(raw & 1);
+        }
+
+        int readInt() {
+            require(4);
+            int value = ((data[position] & 0xFF) << 24) | ((data[position + 1] & 0xFF) << 16)
+                    | ((data[position + 2] & 0xFF) << 8) | (data[position + 3] & 0xFF);
+            position += 4;
+            return value;
+        }
+
+        long readLong() {
+            return ((long) readInt() << 32) | (readInt() & 0xFFFFFFFFL);
+        }
+
+        String readString(int length) {
+            require(length);
+            String value = new String(data, position, length, StandardCharsets.UTF_8);
+            position += length;
+            return value;
+        }
+
+        private void require(long count) {
+            if (count < 0 || position + count > end) {
+                throw new IllegalArgumentException("Truncated binary payload");
+            }
+        }
+    }
+}
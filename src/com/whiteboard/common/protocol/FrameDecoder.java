@@ -0,0 +1,153 @@
+package com.whiteboard.common.protocol;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.function.Consumer;
+
+/**
+ * Incremental decoder for a stream that mixes newline-terminated text lines
+ * and {@link BinaryCodec} frames. Bytes can be fed in arbitrary chunks; every
+ * complete message is handed on either as its text line or, for a
+ * {@link BinaryCodec.MessageHandler}, as decoded fields.
+ * Not thread-safe: one decoder per connection.
+ */
+public class FrameDecoder {
+
+    private static final int MAX_LINE_LENGTH = BinaryCodec.MAX_PAYLOAD_LENGTH;
+
+    private enum State { START, TEXT, LENGTH, PAYLOAD }
+
+    private State state = State.START;
+    private byte[] buffer = new byte[256];
+    private int size;
+    private int payloadLength;
+    private int lengthShift;
+
+    /**
+     * Decodes as many messages as the chunk completes.
+     * @param data Source bytes
+     * @param offset Start of the chunk
+     * @param length Chunk length
+     * @param consumer Receives each decoded line, in order
+     * @throws IOException If a message is too long or a binary frame is malformed
+     */
+    public void feed(byte[] data, int offset, int length, Consumer<String> consumer) throws IOException {
+        feed(data, offset, length, consumer, null);
+    }
+
+    /**
+     * Decodes as many messages as the chunk completes, passing binary frames
+     * on as fields rather than text lines.
+     * @param handler Receives each decoded message, in order
+     * @throws IOException If a message is too long or a binary frame is malformed
+     */
+    public void feed(byte[] data, int offset, int length, BinaryCodec.MessageHandler handler) throws IOException {
+        feed(data, offset, length, handler::text, handler);
+    }
+
+    /**
+     * @param handler Receives binary frames as fields, or null to have them as text lines
+     */
+    private void feed(byte[] data, int offset, int length, Consumer<String> consumer,
+                      BinaryCodec.MessageHandler handler) throws IOException {
+        int end = offset + length;
+        int i = offset;
+        while (i < end) {
+            switch (state) {
+                case START:
+                    if ((data[i] & 0xFF) == BinaryCodec.FRAME_V1) {
+                        state = State.LENGTH;
+                        payloadLength = 0;
+                        lengthShift = 0;
+                        i++;
+                    } else {
+                        state = State.TEXT;
+                    }
+                    break;
+
+                case TEXT: {
+                    int lineEnd = i;
+                    while (lineEnd < end && data[lineEnd] != '\n') {
+                        lineEnd++;
+                    }
+                    append(data, i, lineEnd - i);
+                    i = lineEnd;
+                    if (i < end) {
+                        i++;  // consume '\n'
+                        int lineLength = size;
+                        if (lineLength > 0 && buffer[lineLength - 1] == '\r') {
+                            lineLength--;
+                        }
+                        String line = new String(buffer, 0, lineLength, StandardCharsets.UTF_8);
+                        reset();
+                        consumer.accept(line);
+                    }
+                    break;
+                }
+
+                case LENGTH: {
+                    int b = data[i++] & 0xFF;
+                    payloadLength |= (b & 0x7F) << lengthShift;
+                    lengthShift += 7;
+                    if ((b & 0x80) == 0) {
+                        if (payloadLength <= 0 || payloadLength > BinaryCodec.MAX_PAYLOAD_LENGTH) {
+                            throw new IOException("Invalid binary frame length: " + payloadLength);
+                        }
+                        state = State.PAYLOAD;
+                    } else if (lengthShift > 28) {
+                        throw new IOException("Binary frame length too long");
+                    }
+                    break;
+                }
+
+                case PAYLOAD: {
+                    int take = Math.min(payloadLength - size, end - i);
+                    append(data, i, take);
+                    i += take;
+                    if (size == payloadLength) {
+                        if (handler != null) {
+                            try {
+                                BinaryCodec.decodePayload(buffer, 0, size, handler);
+                            } catch (IllegalArgumentException e) {
+                                throw new IOException("Malformed binary frame: " + e.getMessage());
+                            } finally {
+                                reset();
+                            }
+                            break;
+                        }
+                        String line;
+                        try {
+                            line = BinaryCodec.decodePayload(buffer, 0, size);
+                        } catch (IllegalArgumentException e) {
+                            throw new IOException("Malformed binary frame: " + e.getMessage());
+                        }
+                        reset();
+                        consumer.accept(line);
+                    }
+                    break;
+                }
+            }
+        }
+    }
+
+    private void append(byte[] data, int offset, int length) throws IOException {
+        if (size + length > buffer.length) {
+            if (size + length > MAX_LINE_LENGTH) {
+                throw new IOException("Message too long");
+            }
+            buffer = Arrays.copyOf(buffer, Math.min(MAX_LINE_LENGTH, Math.max(buffer.length * 2, size + length)));
+        }
+        System.arraycopy(data, offset, buffer, size, length);
+        size += length;
+    }
+
+    private void reset() {
+        state = State.START;
+        size = 0;
+        if (buffer.length > 64 * 1024) {
+            // Don't keep one huge message's buffer around forever
+            buffer = new byte[256];
+        }
+    }
+}
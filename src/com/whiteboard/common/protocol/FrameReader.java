@@ -0,0 +1,57 @@
+package com.whiteboard.common.protocol;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+
+/**
+ * Blocking reader over a stream of mixed text lines and binary frames.
+ * A drop-in replacement for BufferedReader.readLine() that also understands
+ * {@link BinaryCodec} frames. Does its own buffering without locks.
+ */
+public class FrameReader {
+
+    private final InputStream in;
+    private final byte[] chunk = new byte[8192];
+    private final FrameDecoder decoder = new FrameDecoder();
+    private final ArrayDeque<String> ready = new ArrayDeque<>();
+
+    public FrameReader(InputStream in) {
+        this.in = in;
+    }
+
+    /**
+     * @return The next message as a text line, or null at end of stream
+     */
+    public String readLine() throws IOException {
+        while (ready.isEmpty()) {
+            int read = in.read(chunk);
+            if (read < 0) {
+                return null;
+            }
+            decoder.feed(chunk, 0, read, ready::add);
+        }
+        return ready.poll();
+    }
+
+    /**
+     * Waits for more data and hands every message it completes to the handler,
+     * binary frames as decoded fields
+     * @return false at end of stream
+     */
+    public boolean read(BinaryCodec.MessageHandler handler) throws IOException {
+        while (!ready.isEmpty()) {
+            handler.text(ready.poll());
+        }
+        int read = in.read(chunk);
+        if (read < 0) {
+            return false;
+        }
+        decoder.feed(chunk, 0, read, handler);
+        return true;
+    }
+
+    public void close() throws IOException {
+        in.close();
+    }
+}
@@ -16,7 +16,7 @@ public class Constants {
     public static final String PROTOCOL_CLIENT_CONNECTED = "CLIENT_CONNECTED";
     public static final String PROTOCOL_CLIENT_DISCONNECTED = "CLIENT_DISCONNECTED";
     
-    // GUI constants
+    // GUI constants: initial size of the canvas view; the board itself is unbounded
     public static final int CANVAS_WIDTH = 800;
     public static final int CANVAS_HEIGHT = 600;
     
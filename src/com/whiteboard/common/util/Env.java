@@ -0,0 +1,29 @@
+package com.whiteboard.common.util;
+
+/**
+ * Reads settings from environment variables.
+ */
+public final class Env {
+
+    private Env() {
+        // Utility class - prevent instantiation
+    }
+
+    /**
+     * @param name Environment variable
+     * @param defaultValue Used if the variable is unset, blank or not a number
+     * @return The variable's value as an int
+     */
+    public static int intEnv(String name, int defaultValue) {
+        String value = System.getenv(name);
+        if (value == null || value.trim().isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            System.err.println("Invalid value for " + name + ": " + value + ", using " + defaultValue);
+            return defaultValue;
+        }
+    }
+}
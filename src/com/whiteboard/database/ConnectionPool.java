@@ -0,0 +1,281 @@
+package com.whiteboard.database;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A bounded pool of JDBC connections. Connections are opened on demand up to
+ * the pool size, validated when they have sat idle for a while, and handed
+ * back on {@link PooledConnection#close()}. Borrowers wait (up to a timeout)
+ * when all connections are in use; the time spent waiting is recorded.
+ */
+public class ConnectionPool {
+
+    private static final long VALIDATE_AFTER_IDLE_MS = 5000;
+    private static final int VALIDATION_TIMEOUT_SECONDS = 2;
+
+    private final String url;
+    private final Properties info;
+    private final int maxSize;
+    private final long borrowTimeoutMillis;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition available = lock.newCondition();
+    private final ArrayDeque<PooledConnection> idle = new ArrayDeque<>();
+    private int open;
+    private boolean closed;
+    // Whether the last connection opened or checked was good
+    private volatile boolean healthy;
+
+    private final AtomicLong borrows = new AtomicLong();
+    private final AtomicLong waits = new AtomicLong();
+    private final AtomicLong waitNanos = new AtomicLong();
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+    private final AtomicLong timeouts = new AtomicLong();
+    private final AtomicLong created = new AtomicLong();
+    private final AtomicLong discarded = new AtomicLong();
+
+    /**
+     * @param url JDBC URL
+     * @param info Connection properties, including user and password
+     * @param maxSize Most connections open at once
+     * @param borrowTimeoutMillis Longest a borrower waits for a free connection
+     */
+    public ConnectionPool(String url, Properties info, int maxSize, long borrowTimeoutMillis) {
+        this.url = url;
+        this.info = info;
+        this.maxSize = Math.max(1, maxSize);
+        this.borrowTimeoutMillis = borrowTimeoutMillis;
+    }
+
+    /**
+     * Takes a connection, opening one if none is idle and the pool isn't full.
+     * Close the returned connection to give it back.
+     * @return A connection for this thread's exclusive use
+     * @throws SQLException If no connection could be opened or none became free in time
+     */
+    public PooledConnection borrow() throws SQLException {
+        long start = System.nanoTime();
+        long deadline = start + TimeUnit.MILLISECONDS.toNanos(borrowTimeoutMillis);
+        boolean waited = false;
+        while (true) {
+            PooledConnection candidate = null;
+            boolean openNew = false;
+            lock.lock();
+            try {
+                while (!closed && idle.isEmpty() && open >= maxSize) {
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) {
+                        timeouts.incrementAndGet();
+                        throw new SQLException("Timed out after " + borrowTimeoutMillis
+                                + " ms waiting for a database connection (" + open + " in use)");
+                    }
+                    waited = true;
+                    available.awaitNanos(remaining);
+                }
+                if (closed) {
+                    throw new SQLException("Connection pool is closed");
+                }
+                if (!idle.isEmpty()) {
+                    candidate = idle.pollLast();
+                } else {
+                    open++;
+                    openNew = true;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SQLException("Interrupted waiting for a database connection");
+            } finally {
+                lock.unlock();
+            }
+
+            if (openNew) {
+                candidate = openConnection();
+            } else if (!isUsable(candidate)) {
+                discard(candidate);
+                continue;
+            }
+            recordBorrow(start, waited);
+            candidate.borrowed = true;
+            return candidate;
+        }
+    }
+
+    private PooledConnection openConnection() throws SQLException {
+        try {
+            Connection connection = DriverManager.getConnection(url, info);
+            healthy = true;
+            created.incrementAndGet();
+            return new PooledConnection(this, connection);
+        } catch (SQLException | RuntimeException e) {
+            healthy = false;
+            lock.lock();
+            try {
+                open--;
+                available.signal();
+            } finally {
+                lock.unlock();
+            }
+            throw e;
+        }
+    }
+
+    private boolean isUsable(PooledConnection connection) {
+        try {
+            if (connection.getConnection().isClosed()) {
+                return false;
+            }
+            if (System.currentTimeMillis() - connection.lastReturnedMillis < VALIDATE_AFTER_IDLE_MS) {
+                return true;
+            }
+            healthy = connection.getConnection().isValid(VALIDATION_TIMEOUT_SECONDS);
+            return healthy;
+        } catch (SQLException e) {
+            healthy = false;
+            return false;
+        }
+    }
+
+    private void recordBorrow(long start, boolean waited) {
+        borrows.incrementAndGet();
+        if (!waited) {
+            return;
+        }
+        long waitedNanos = System.nanoTime() - start;
+        waits.incrementAndGet();
+        waitNanos.addAndGet(waitedNanos);
+        maxWaitNanos.accumulateAndGet(waitedNanos, Math::max);
+    }
+
+    /**
+     * Takes a connection back. Called by {@link PooledConnection#close()}.
+     */
+    void release(PooledConnection connection) {
+        boolean reusable;
+        try {
+            Connection raw = connection.getConnection();
+            reusable = !raw.isClosed();
+            if (reusable && !raw.getAutoCommit()) {
+                // Borrower left a transaction open
+                raw.rollback();
+                raw.setAutoCommit(true);
+            }
+        } catch (SQLException e) {
+            reusable = false;
+        }
+        if (!reusable) {
+            // Usually the driver closing it after losing the server
+            healthy = false;
+            discard(connection);
+            return;
+        }
+        connection.lastReturnedMillis = System.currentTimeMillis();
+        lock.lock();
+        try {
+            if (!closed) {
+                idle.addLast(connection);
+                available.signal();
+                return;
+            }
+        } finally {
+            lock.unlock();
+        }
+        connection.closeQuietly();
+    }
+
+    private void discard(PooledConnection connection) {
+        discarded.incrementAndGet();
+        connection.closeQuietly();
+        lock.lock();
+        try {
+            open--;
+            available.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Closes idle connections and refuses further borrows.
+     * Connections still borrowed are closed when they are returned.
+     */
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            for (PooledConnection connection : idle) {
+                connection.closeQuietly();
+            }
+            open -= idle.size();
+            idle.clear();
+            available.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return true if the database answered the last time a connection was
+     *         opened or an idle one was checked
+     */
+    public boolean isHealthy() {
+        return healthy;
+    }
+
+    /**
+     * @return Connections currently borrowed
+     */
+    public int getActiveCount() {
+        lock.lock();
+        try {
+            return open - idle.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return Connections open and waiting to be borrowed
+     */
+    public int getIdleCount() {
+        lock.lock();
+        try {
+            return idle.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return Mean time borrowers spent waiting for a connection, over all borrows, in milliseconds
+     */
+    public double getAverageWaitMillis() {
+        long count = borrows.get();
+        return count == 0 ? 0 : waitNanos.get() / 1e6 / count;
+    }
+
+    public double getMaxWaitMillis() {
+        return maxWaitNanos.get() / 1e6;
+    }
+
+    public long getTimeoutCount() {
+        return timeouts.get();
+    }
+
+    /**
+     * @return One line summarising pool usage and wait times
+     */
+    public String getStats() {
+        return String.format("Connection pool: %d active, %d idle (max %d), %d borrows, %d waited "
+                        + "(avg %.2f ms, max %.2f ms), %d timeouts, %d opened, %d discarded",
+                getActiveCount(), getIdleCount(), maxSize, borrows.get(), waits.get(),
+                getAverageWaitMillis(), getMaxWaitMillis(), timeouts.get(), created.get(), discarded.get());
+    }
+}
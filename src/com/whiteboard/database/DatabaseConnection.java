@@ -1,10 +1,13 @@
 package com.whiteboard.database;
 
+import com.whiteboard.common.util.Env;
+
 import java.sql.*;
+import java.util.Properties;
 
 /**
- * Manages database connection as a singleton.
- * Provides connection to MySQL database.
+ * Manages the database connection pool as a singleton.
+ * Callers borrow a connection per unit of work and close it to return it.
  */
 public class DatabaseConnection {
     private static final String DB_URL = System.getenv("DB_URL") != null ? System.getenv("DB_URL")
@@ -13,20 +16,26 @@ public class DatabaseConnection {
             : "whiteboard_user";
     private static final String DB_PASSWORD = System.getenv("DB_PASSWORD") != null ? System.getenv("DB_PASSWORD")
             : "whiteboard_pass";
+    private static final int POOL_SIZE = Env.intEnv("DB_POOL_SIZE",
+            Math.max(4, Runtime.getRuntime().availableProcessors()));
+    private static final int POOL_TIMEOUT_MS = Env.intEnv("DB_POOL_TIMEOUT_MS", 5000);
+    private static final int BACKFILL_CHUNK_ROWS = 10000;
 
     private static DatabaseConnection instance;
-    private Connection connection;
+    private final ConnectionPool pool;
 
     private DatabaseConnection() {
+        Properties info = new Properties();
+        info.setProperty("user", DB_USER);
+        info.setProperty("password", DB_PASSWORD);
+        // Statements given a fetch size read through a server-side cursor instead of buffering every row
+        info.setProperty("useCursorFetch", "true");
+        this.pool = new ConnectionPool(DB_URL, info, POOL_SIZE, POOL_TIMEOUT_MS);
         try {
             Class.forName("com.mysql.cj.jdbc.Driver");
-            this.connection = DriverManager.getConnection(DB_URL, DB_USER, DB_PASSWORD);
-            System.out.println("Database connected successfully!");
             initializeDatabase();
         } catch (ClassNotFoundException e) {
             System.err.println("MySQL JDBC Driver not found: " + e.getMessage());
-        } catch (SQLException e) {
-            System.err.println("Database connection failed: " + e.getMessage());
         }
     }
 
@@ -41,17 +50,19 @@ public class DatabaseConnection {
     }
 
     /**
-     * Gets the database connection
+     * Borrows a connection from the pool. Close it to return it.
+     * @return A connection for the calling thread's use
+     * @throws SQLException If none could be opened or none became free in time
      */
-    public Connection getConnection() {
-        try {
-            if (connection == null || connection.isClosed()) {
-                connection = DriverManager.getConnection(DB_URL, DB_USER, DB_PASSWORD);
-            }
-        } catch (SQLException e) {
-            System.err.println("Error getting connection: " + e.getMessage());
-        }
-        return connection;
+    public PooledConnection borrow() throws SQLException {
+        return pool.borrow();
+    }
+
+    /**
+     * @return The pool, for its usage and wait-time figures
+     */
+    public ConnectionPool getPool() {
+        return pool;
     }
 
     /**
@@ -69,43 +80,151 @@ public class DatabaseConnection {
         String createDrawingsTable = "CREATE TABLE IF NOT EXISTS drawings (" +
                 "drawing_id INT AUTO_INCREMENT PRIMARY KEY, " +
                 "session_id INT NOT NULL, " +
-                "drawing_data TEXT NOT NULL, " +
+                "shape_id VARCHAR(64) NULL, " +
+                // NULL marks a tombstone: the shape was erased after the session's snapshot
+                "drawing_data TEXT NULL, " +
                 "created_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP, " +
                 "FOREIGN KEY (session_id) REFERENCES sessions(session_id) ON DELETE CASCADE, " +
-                "INDEX idx_session_id (session_id)" +
+                "INDEX idx_session_id (session_id), " +
+                "INDEX idx_session_shape (session_id, shape_id)" +
+                ")";
+
+        // The latest snapshot of each session's live board, gzipped one drawing per line
+        String createSnapshotsTable = "CREATE TABLE IF NOT EXISTS session_snapshots (" +
+                "session_id INT PRIMARY KEY, " +
+                "version BIGINT NOT NULL, " +
+                "shape_count INT NOT NULL, " +
+                "snapshot_data LONGBLOB NOT NULL, " +
+                "created_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP ON UPDATE CURRENT_TIMESTAMP, " +
+                "FOREIGN KEY (session_id) REFERENCES sessions(session_id) ON DELETE CASCADE" +
                 ")";
 
-        try (Statement stmt = connection.createStatement()) {
-            stmt.execute(createSessionsTable);
-            stmt.execute(createDrawingsTable);
-            System.out.println("Database tables initialized successfully!");
+        boolean connected = false;
+        try (PooledConnection conn = pool.borrow()) {
+            connected = true;
+            System.out.println("Database connected successfully! (pool of " + POOL_SIZE + ")");
+            try (Statement stmt = conn.getConnection().createStatement()) {
+                stmt.execute(createSessionsTable);
+                stmt.execute(createDrawingsTable);
+                stmt.execute(createSnapshotsTable);
+                migrateShapeIds(conn);
+                migrateSessionIndex(conn);
+                migrateTombstones(conn);
+                System.out.println("Database tables initialized successfully!");
+            }
         } catch (SQLException e) {
-            System.err.println("Error initializing database: " + e.getMessage());
+            System.err.println((connected ? "Error initializing database: " : "Database connection failed: ")
+                    + e.getMessage());
         }
     }
 
     /**
-     * Checks if the database connection is active
+     * Adds the indexed shape_id column to drawings tables created before it
+     * existed, then fills it in from each row's drawing data. The backfill runs
+     * in chunks of drawing_id so it doesn't hold one huge transaction on a big
+     * table, and picks up where it left off if the server was stopped part way.
      */
-    public boolean isConnected() {
-        try {
-            return connection != null && !connection.isClosed();
-        } catch (SQLException e) {
-            return false;
+    private void migrateShapeIds(PooledConnection conn) throws SQLException {
+        String columnSql = "SELECT COUNT(*) FROM information_schema.columns " +
+                "WHERE table_schema = DATABASE() AND table_name = 'drawings' AND column_name = 'shape_id'";
+        boolean hasColumn;
+        try (Statement stmt = conn.getConnection().createStatement();
+             ResultSet rs = stmt.executeQuery(columnSql)) {
+            hasColumn = rs.next() && rs.getInt(1) > 0;
+        }
+        if (!hasColumn) {
+            try (Statement stmt = conn.getConnection().createStatement()) {
+                stmt.execute("ALTER TABLE drawings ADD COLUMN shape_id VARCHAR(64) NULL AFTER session_id, " +
+                        "ADD INDEX idx_session_shape (session_id, shape_id)");
+            }
+            System.out.println("Added shape_id column to drawings");
+        }
+
+        // Shape lines start with their id: id:TYPE:... An id over 64 characters stays NULL,
+        // as SessionDao.shapeIdOf leaves it. Walked in primary key ranges: shape_id IS NULL
+        // has no index to find the next chunk with.
+        String rangeSql = "SELECT MIN(drawing_id), MAX(drawing_id) FROM drawings " +
+                "WHERE shape_id IS NULL AND drawing_data IS NOT NULL";
+        String backfillSql = "UPDATE drawings " +
+                "SET shape_id = SUBSTRING(drawing_data, 1, LOCATE(':', drawing_data) - 1) " +
+                "WHERE drawing_id BETWEEN ? AND ? AND shape_id IS NULL " +
+                "AND LOCATE(':', drawing_data) BETWEEN 2 AND 65";
+        long first;
+        long last;
+        try (Statement stmt = conn.getConnection().createStatement();
+             ResultSet rs = stmt.executeQuery(rangeSql)) {
+            rs.next();
+            first = rs.getLong(1);
+            last = rs.getLong(2);
+            if (rs.wasNull()) {
+                return;
+            }
+        }
+        long backfilled = 0;
+        PreparedStatement backfill = conn.prepare(backfillSql);
+        for (long from = first; from <= last; from += BACKFILL_CHUNK_ROWS) {
+            backfill.setLong(1, from);
+            backfill.setLong(2, from + BACKFILL_CHUNK_ROWS - 1);
+            backfilled += backfill.executeUpdate();
+        }
+        if (backfilled > 0) {
+            System.out.println("Backfilled shape_id for " + backfilled + " drawings");
         }
     }
 
     /**
-     * Closes the database connection
+     * Puts back the (session_id) index on drawings tables created without it,
+     * which loads read in drawing_id order
      */
-    public void close() {
-        try {
-            if (connection != null && !connection.isClosed()) {
-                connection.close();
-                System.out.println("Database connection closed.");
+    private void migrateSessionIndex(PooledConnection conn) throws SQLException {
+        String indexSql = "SELECT COUNT(*) FROM information_schema.statistics " +
+                "WHERE table_schema = DATABASE() AND table_name = 'drawings' AND index_name = 'idx_session_id'";
+        boolean hasIndex;
+        try (Statement stmt = conn.getConnection().createStatement();
+             ResultSet rs = stmt.executeQuery(indexSql)) {
+            hasIndex = rs.next() && rs.getInt(1) > 0;
+        }
+        if (!hasIndex) {
+            try (Statement stmt = conn.getConnection().createStatement()) {
+                stmt.execute("ALTER TABLE drawings ADD INDEX idx_session_id (session_id)");
             }
-        } catch (SQLException e) {
-            System.err.println("Error closing database connection: " + e.getMessage());
+            System.out.println("Added idx_session_id index to drawings");
+        }
+    }
+
+    /**
+     * Lets drawings tables created before snapshots hold tombstone rows
+     */
+    private void migrateTombstones(PooledConnection conn) throws SQLException {
+        String nullableSql = "SELECT is_nullable FROM information_schema.columns " +
+                "WHERE table_schema = DATABASE() AND table_name = 'drawings' AND column_name = 'drawing_data'";
+        boolean nullable;
+        try (Statement stmt = conn.getConnection().createStatement();
+             ResultSet rs = stmt.executeQuery(nullableSql)) {
+            nullable = !rs.next() || "YES".equals(rs.getString(1));
+        }
+        if (!nullable) {
+            try (Statement stmt = conn.getConnection().createStatement()) {
+                stmt.execute("ALTER TABLE drawings MODIFY drawing_data TEXT NULL");
+            }
+            System.out.println("Made drawings.drawing_data nullable for tombstones");
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * Checks if the database could be reached the last time the pool opened
+     * or checked a connection
+     */
+    public boolean isConnected() {
+        return pool.isHealthy();
+    }
+
+    /**
+     * Closes the pooled connections
+     */
+    public void close() {
+        System.out.println(pool.getStats());
+        pool.close();
+        System.out.println("Database connections closed.");
+    }
+}
@@ -1,53 +1,433 @@
 package com.whiteboard.database;
 
+import com.whiteboard.storage.SessionStore;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 import java.sql.*;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
 /**
  * Data Access Object for Session-related database operations.
- * Handles all CRUD operations for sessions and their drawings.
+ * Handles all CRUD operations for sessions and their drawings, and serves as
+ * the MySQL {@link SessionStore}.
+ *
+ * A session's board is its latest row in session_snapshots, a gzipped blob of
+ * its live drawings one per line, followed by the drawings rows written since.
+ * Writing a snapshot deletes the rows it covers. Erases leave a tombstone row
+ * (drawing_data NULL) so they also hide drawings that are in the snapshot. A
+ * drawing saved again replaces its row, and a tombstone for its id.
  */
-public class SessionDao {
+public class SessionDao implements SessionStore {
+
+    private static final long LOAD_FLUSH_TIMEOUT_MS = 10000;
+    private static final long CLOSE_TIMEOUT_MS = 30000;
+    private static final int LOAD_FETCH_SIZE = 1000;
+
+    private static final String INSERT_DRAWING_SQL =
+            "INSERT INTO drawings (session_id, shape_id, drawing_data) VALUES (?, ?, ?)";
+    private static final String DELETE_DRAWING_SQL =
+            "DELETE FROM drawings WHERE session_id = ? AND shape_id = ?";
+    private static final String INSERT_TOMBSTONE_SQL =
+            "INSERT INTO drawings (session_id, shape_id, drawing_data) VALUES (?, ?, NULL)";
+    private static final String UPSERT_SNAPSHOT_SQL =
+            "INSERT INTO session_snapshots (session_id, version, shape_count, snapshot_data) VALUES (?, 1, ?, ?) " +
+            "ON DUPLICATE KEY UPDATE version = version + 1, shape_count = VALUES(shape_count), " +
+            "snapshot_data = VALUES(snapshot_data)";
+    private static final String PRUNE_DRAWINGS_SQL = "DELETE FROM drawings WHERE session_id = ?";
 
     private final DatabaseConnection dbConnection;
+    private final WriteBehindQueue writeBehind;
+    // Session name -> session_id, so saves don't look the session up every time
+    private final ConcurrentHashMap<String, Integer> sessionIds = new ConcurrentHashMap<>();
 
     public SessionDao() {
         this.dbConnection = DatabaseConnection.getInstance();
+        this.writeBehind = new WriteBehindQueue(this::writeBatch);
     }
 
     /**
-     * Gets or creates a session ID for the given session name
+     * Queues a drawing to be saved in the background
      * @param sessionName The name of the session
-     * @return The session ID, or -1 if error
+     * @param drawingData The serialized drawing data
+     * @return false if it was refused because the queue is full or closed
      */
-    private int getOrCreateSessionId(String sessionName) {
-        Connection conn = dbConnection.getConnection();
+    public boolean saveDrawingAsync(String sessionName, String drawingData) {
+        return writeBehind.enqueue(WriteBehindQueue.Kind.SAVE, sessionName, drawingData);
+    }
 
-        // First try to get existing session
-        String selectSql = "SELECT session_id FROM sessions WHERE session_name = ?";
-        try (PreparedStatement pstmt = conn.prepareStatement(selectSql)) {
-            pstmt.setString(1, sessionName);
-            ResultSet rs = pstmt.executeQuery();
-            if (rs.next()) {
-                return rs.getInt("session_id");
+    /**
+     * Queues a drawing to be deleted in the background, after any queued saves
+     * @param sessionName The name of the session
+     * @param shapeId The shape's id
+     * @return false if it was refused because the queue is full or closed
+     */
+    public boolean deleteDrawingAsync(String sessionName, String shapeId) {
+        return writeBehind.enqueue(WriteBehindQueue.Kind.DELETE, sessionName, shapeId);
+    }
+
+    /**
+     * Queues a session's drawings to be cleared in the background, after any queued saves
+     * @param sessionName The name of the session
+     * @return false if it was refused because the queue is full or closed
+     */
+    public boolean clearSessionDrawingsAsync(String sessionName) {
+        return writeBehind.enqueue(WriteBehindQueue.Kind.CLEAR, sessionName, null);
+    }
+
+    /**
+     * Queues a snapshot of a session's live board in the background, after any
+     * queued writes. Once written, the drawings rows it covers are deleted.
+     * @param sessionName The name of the session
+     * @param drawings Its live drawings, oldest first
+     * @return false if it was refused because the queue is full or closed
+     */
+    public boolean saveSnapshotAsync(String sessionName, List<String> drawings) {
+        return writeBehind.enqueueSnapshot(sessionName, drawings);
+    }
+
+    @Override
+    public void load(String sessionName, Consumer<String> drawings) {
+        loadSessionDrawings(sessionName, drawings);
+    }
+
+    @Override
+    public boolean append(String sessionName, String drawing) {
+        return saveDrawingAsync(sessionName, drawing);
+    }
+
+    @Override
+    public boolean delete(String sessionName, String shapeId) {
+        return deleteDrawingAsync(sessionName, shapeId);
+    }
+
+    @Override
+    public boolean clear(String sessionName) {
+        return clearSessionDrawingsAsync(sessionName);
+    }
+
+    @Override
+    public boolean snapshot(String sessionName, List<String> drawings) {
+        return saveSnapshotAsync(sessionName, drawings);
+    }
+
+    /**
+     * @return The write-behind queue, for its lag and throughput figures
+     */
+    public WriteBehindQueue getWriteBehind() {
+        return writeBehind;
+    }
+
+    /**
+     * Applies queued writes in order. The writes between snapshots go in one
+     * transaction, saves batched; if that fails, each session's writes are
+     * tried again in a transaction of their own, so one bad write only costs
+     * its own session's part. Each snapshot has a transaction to itself, so a
+     * blob the server refuses only loses that snapshot.
+     * @param batch Writes in the order they were queued
+     * @return Number of writes committed
+     */
+    private int writeBatch(List<WriteBehindQueue.Write> batch) {
+        try (PooledConnection conn = dbConnection.borrow()) {
+            int committed = 0;
+            int start = 0;
+            for (int i = 0; i <= batch.size(); i++) {
+                if (i < batch.size() && batch.get(i).kind != WriteBehindQueue.Kind.SNAPSHOT) {
+                    continue;
+                }
+                if (i > start) {
+                    committed += writeRun(conn, batch.subList(start, i));
+                }
+                if (i < batch.size() && writeSnapshot(conn, batch.get(i))) {
+                    committed++;
+                }
+                start = i + 1;
+            }
+            return committed;
+        } catch (SQLException e) {
+            System.err.println("Error writing batch: no database connection, " + batch.size() + " writes lost: "
+                    + e.getMessage());
+            return 0;
+        }
+    }
+
+    /**
+     * Applies a run of writes with no snapshot among them, as one transaction
+     * or, failing that, one per session
+     * @return Number of writes committed
+     */
+    private int writeRun(PooledConnection conn, List<WriteBehindQueue.Write> run) {
+        if (writeBatch(conn, run)) {
+            return run.size();
+        }
+        Map<String, List<WriteBehindQueue.Write>> bySession = new LinkedHashMap<>();
+        for (WriteBehindQueue.Write write : run) {
+            bySession.computeIfAbsent(write.sessionName, name -> new ArrayList<>()).add(write);
+        }
+        if (bySession.size() == 1) {
+            return 0;
+        }
+        int committed = 0;
+        for (Map.Entry<String, List<WriteBehindQueue.Write>> writes : bySession.entrySet()) {
+            if (writeBatch(conn, writes.getValue())) {
+                committed += writes.getValue().size();
+            } else {
+                System.err.println(writes.getValue().size() + " writes lost for session: " + writes.getKey());
+            }
+        }
+        return committed;
+    }
+
+    /**
+     * Writes a snapshot in a transaction of its own. If it fails the rows it
+     * would have pruned stay, so the board still loads as it was.
+     * @return true if it was committed
+     */
+    private boolean writeSnapshot(PooledConnection conn, WriteBehindQueue.Write write) {
+        Connection raw = conn.getConnection();
+        try {
+            raw.setAutoCommit(false);
+            Map<String, Integer> resolved = new HashMap<>();
+            int sessionId = getOrCreateSessionId(conn, write.sessionName, resolved);
+            if (sessionId == -1) {
+                raw.rollback();
+                return false;
+            }
+            executeSnapshot(conn, sessionId, write);
+            raw.commit();
+            sessionIds.putAll(resolved);
+            return true;
+        } catch (SQLException e) {
+            System.err.println("Error writing snapshot of session " + write.sessionName + ": " + e.getMessage());
+            try {
+                raw.rollback();
+            } catch (SQLException rollbackError) {
+                System.err.println("Error rolling back snapshot: " + rollbackError.getMessage());
+            }
+            return false;
+        } finally {
+            try {
+                raw.setAutoCommit(true);
+            } catch (SQLException e) {
+                System.err.println("Error restoring auto-commit: " + e.getMessage());
+            }
+        }
+    }
+
+    private boolean writeBatch(PooledConnection conn, List<WriteBehindQueue.Write> batch) {
+        Connection raw = conn.getConnection();
+        try {
+            raw.setAutoCommit(false);
+            PreparedStatement insert = conn.prepare(INSERT_DRAWING_SQL);
+            PreparedStatement delete = conn.prepare(DELETE_DRAWING_SQL);
+            PreparedStatement tombstone = conn.prepare(INSERT_TOMBSTONE_SQL);
+            // Ids resolved in this transaction; cached only once it commits, as a rollback undoes new sessions
+            Map<String, Integer> resolved = new HashMap<>();
+            // Runs of saves and runs of deletes each go as one JDBC batch. Only one
+            // kind is pending at a time, so writes still apply in queue order.
+            WriteBehindQueue.Kind pending = null;
+            // Shape ids saved in the pending run: a save deletes its id's older rows before
+            // the run's inserts, so an id saved twice has to end the run in between
+            Set<String> pendingIds = new HashSet<>();
+            for (WriteBehindQueue.Write write : batch) {
+                String shapeId = write.kind == WriteBehindQueue.Kind.SAVE ? shapeIdOf(write.value) : null;
+                boolean repeated = shapeId != null && !pendingIds.add(shapeId);
+                if (pending != null && (pending != write.kind || repeated)) {
+                    executePending(pending, insert, delete, tombstone);
+                    pending = null;
+                    pendingIds.clear();
+                    if (shapeId != null) {
+                        pendingIds.add(shapeId);
+                    }
+                }
+                if (write.kind == WriteBehindQueue.Kind.CLEAR) {
+                    executeClear(conn, write.sessionName);
+                    continue;
+                }
+                int sessionId = getOrCreateSessionId(conn, write.sessionName, resolved);
+                if (sessionId == -1) {
+                    continue;
+                }
+                if (write.kind == WriteBehindQueue.Kind.SAVE) {
+                    if (shapeId != null) {
+                        delete.setInt(1, sessionId);
+                        delete.setString(2, shapeId);
+                        delete.addBatch();
+                    }
+                    bindInsert(insert, sessionId, write.value);
+                    insert.addBatch();
+                } else {
+                    delete.setInt(1, sessionId);
+                    delete.setString(2, write.value);
+                    delete.addBatch();
+                    tombstone.setInt(1, sessionId);
+                    tombstone.setString(2, write.value);
+                    tombstone.addBatch();
+                }
+                pending = write.kind;
+            }
+            if (pending != null) {
+                executePending(pending, insert, delete, tombstone);
             }
+            raw.commit();
+            sessionIds.putAll(resolved);
+            return true;
         } catch (SQLException e) {
-            System.err.println("Error getting session: " + e.getMessage());
+            System.err.println("Error writing batch of " + batch.size() + " to database: " + e.getMessage());
+            try {
+                raw.rollback();
+            } catch (SQLException rollbackError) {
+                System.err.println("Error rolling back batch: " + rollbackError.getMessage());
+            }
+            return false;
+        } finally {
+            try {
+                raw.setAutoCommit(true);
+            } catch (SQLException e) {
+                System.err.println("Error restoring auto-commit: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Runs the JDBC batch of a run of saves, after deleting the rows they
+     * replace, or of deletes and then their tombstones
+     */
+    private static void executePending(WriteBehindQueue.Kind kind, PreparedStatement insert,
+                                       PreparedStatement delete, PreparedStatement tombstone) throws SQLException {
+        if (kind == WriteBehindQueue.Kind.SAVE) {
+            delete.executeBatch();
+            insert.executeBatch();
+        } else {
+            delete.executeBatch();
+            tombstone.executeBatch();
+        }
+    }
+
+    /**
+     * Replaces a session's snapshot with its live board and deletes the drawings
+     * rows before it, which the snapshot now covers. Writes queued before the
+     * snapshot have been applied and those after it haven't, so that is all of them.
+     */
+    private void executeSnapshot(PooledConnection conn, int sessionId, WriteBehindQueue.Write write)
+            throws SQLException {
+        byte[] data = encodeSnapshot(write.drawings);
+        PreparedStatement upsert = conn.prepare(UPSERT_SNAPSHOT_SQL);
+        upsert.setInt(1, sessionId);
+        upsert.setInt(2, write.drawings.size());
+        upsert.setBytes(3, data);
+        upsert.executeUpdate();
+
+        PreparedStatement prune = conn.prepare(PRUNE_DRAWINGS_SQL);
+        prune.setInt(1, sessionId);
+        int pruned = prune.executeUpdate();
+        System.out.println("Snapshot of session " + write.sessionName + ": " + write.drawings.size() +
+                " drawings in " + data.length + " bytes, " + pruned + " rows pruned");
+    }
+
+    /**
+     * @param drawings Serialized shapes; they never contain line breaks
+     * @return The shapes gzipped, one per line
+     */
+    private static byte[] encodeSnapshot(List<String> drawings) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (Writer out = new OutputStreamWriter(new GZIPOutputStream(bytes, 1 << 16), StandardCharsets.UTF_8)) {
+            for (String drawing : drawings) {
+                out.write(drawing);
+                out.write('\n');
+            }
+        } catch (IOException e) {
+            // Only the in-memory stream is written to
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Waits for queued writes to be applied, e.g. before reading a session back
+     * @return true if everything queued was applied in time
+     */
+    public boolean flush() {
+        return writeBehind.flush(LOAD_FLUSH_TIMEOUT_MS);
+    }
+
+    /**
+     * Applies all queued writes and stops the write-behind thread
+     */
+    @Override
+    public void close() {
+        writeBehind.close(CLOSE_TIMEOUT_MS);
+        dbConnection.close();
+    }
+
+    /**
+     * @return The connection pool, for its usage and wait-time figures
+     */
+    public ConnectionPool getPool() {
+        return dbConnection.getPool();
+    }
+
+    /**
+     * Gets or creates a session ID for the given session name. Resolved ids
+     * are cached until the session is deleted.
+     * @param conn The connection to use
+     * @param sessionName The name of the session
+     * @return The session ID, or -1 if error
+     */
+    private int getOrCreateSessionId(PooledConnection conn, String sessionName) {
+        return getOrCreateSessionId(conn, sessionName, sessionIds);
+    }
+
+    /**
+     * Gets or creates a session ID, caching a newly resolved one in the given map
+     * @param resolved Where to cache it: the shared cache, or the ids of an
+     *                 open transaction that are cached only if it commits
+     * @return The session ID, or -1 if error
+     */
+    private int getOrCreateSessionId(PooledConnection conn, String sessionName, Map<String, Integer> resolved) {
+        Integer cached = sessionIds.get(sessionName);
+        if (cached == null) {
+            cached = resolved.get(sessionName);
+        }
+        if (cached != null) {
+            return cached;
         }
 
-        // If session doesn't exist, create it
-        String insertSql = "INSERT INTO sessions (session_name) VALUES (?)";
-        try (PreparedStatement pstmt = conn.prepareStatement(insertSql, Statement.RETURN_GENERATED_KEYS)) {
+        // One round trip whether or not the session exists: on a duplicate name,
+        // LAST_INSERT_ID(session_id) makes the existing row's id the generated key
+        String upsertSql = "INSERT INTO sessions (session_name) VALUES (?) " +
+                "ON DUPLICATE KEY UPDATE session_id = LAST_INSERT_ID(session_id)";
+        try {
+            PreparedStatement pstmt = conn.prepare(upsertSql, Statement.RETURN_GENERATED_KEYS);
             pstmt.setString(1, sessionName);
             pstmt.executeUpdate();
 
-            ResultSet generatedKeys = pstmt.getGeneratedKeys();
-            if (generatedKeys.next()) {
-                return generatedKeys.getInt(1);
+            try (ResultSet generatedKeys = pstmt.getGeneratedKeys()) {
+                if (generatedKeys.next()) {
+                    int sessionId = generatedKeys.getInt(1);
+                    resolved.put(sessionName, sessionId);
+                    return sessionId;
+                }
             }
         } catch (SQLException e) {
-            System.err.println("Error creating session: " + e.getMessage());
+            System.err.println("Error resolving session: " + e.getMessage());
         }
 
         return -1;
@@ -60,17 +440,20 @@ public class SessionDao {
      * @return true if save was successful
      */
     public boolean saveDrawing(String sessionName, String drawingData) {
-        int sessionId = getOrCreateSessionId(sessionName);
-        if (sessionId == -1) {
-            return false;
-        }
-
-        Connection conn = dbConnection.getConnection();
-        String sql = "INSERT INTO drawings (session_id, drawing_data) VALUES (?, ?)";
-
-        try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
-            pstmt.setInt(1, sessionId);
-            pstmt.setString(2, drawingData);
+        try (PooledConnection conn = dbConnection.borrow()) {
+            int sessionId = getOrCreateSessionId(conn, sessionName);
+            if (sessionId == -1) {
+                return false;
+            }
+            String shapeId = shapeIdOf(drawingData);
+            if (shapeId != null) {
+                PreparedStatement delete = conn.prepare(DELETE_DRAWING_SQL);
+                delete.setInt(1, sessionId);
+                delete.setString(2, shapeId);
+                delete.executeUpdate();
+            }
+            PreparedStatement pstmt = conn.prepare(INSERT_DRAWING_SQL);
+            bindInsert(pstmt, sessionId, drawingData);
             pstmt.executeUpdate();
             return true;
         } catch (SQLException e) {
@@ -86,29 +469,150 @@ public class SessionDao {
      */
     public List<String> loadSessionDrawings(String sessionName) {
         List<String> drawings = new ArrayList<>();
-        Connection conn = dbConnection.getConnection();
-
-        String sql = "SELECT d.drawing_data " +
-                "FROM drawings d " +
-                "JOIN sessions s ON d.session_id = s.session_id " +
-                "WHERE s.session_name = ? " +
-                "ORDER BY d.created_at ASC";
-
+        loadSessionDrawings(sessionName, drawings::add);
+        return drawings;
+    }
 
-        try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
-            pstmt.setString(1, sessionName);
-            ResultSet rs = pstmt.executeQuery();
+    /**
+     * Streams a session's drawings, oldest first, without holding them all in
+     * memory: its snapshot is decompressed as it is read, and rows are read
+     * through a server-side cursor LOAD_FETCH_SIZE at a time. Only the rows
+     * written since the snapshot are gathered first, to know which of its
+     * drawings they replace or erase.
+     * @param sessionName The name of the session
+     * @param drawings Receives each drawing's data
+     * @return Number of drawings read
+     */
+    public int loadSessionDrawings(String sessionName, Consumer<String> drawings) {
+        // Make sure writes still queued for the session are visible
+        if (!flush()) {
+            System.err.println("Loading session " + sessionName + " before its queued writes were applied");
+        }
 
-            while (rs.next()) {
-                drawings.add(rs.getString("drawing_data"));
+        int count = 0;
+        try (PooledConnection conn = dbConnection.borrow()) {
+            long version = snapshotVersion(conn, sessionName);
+            if (version == 0) {
+                // No snapshot: an erase also deleted the rows it erased, so tombstones can be skipped
+                int[] live = new int[1];
+                streamDrawingRows(conn, sessionName, (shapeId, data) -> {
+                    if (data != null) {
+                        drawings.accept(data);
+                        live[0]++;
+                    }
+                });
+                count = live[0];
+            } else {
+                count = loadSnapshotAndTail(conn, sessionName, drawings);
             }
 
-            System.out.println("Loaded " + drawings.size() + " drawings for session: " + sessionName);
+            System.out.println("Loaded " + count + " drawings for session: " + sessionName +
+                    (version > 0 ? " (snapshot v" + version + ")" : ""));
         } catch (SQLException e) {
             System.err.println("Error loading session: " + e.getMessage());
         }
 
-        return drawings;
+        return count;
+    }
+
+    /**
+     * @return The version of the session's snapshot, or 0 if it has none
+     */
+    private long snapshotVersion(PooledConnection conn, String sessionName) throws SQLException {
+        String sql = "SELECT ss.version FROM session_snapshots ss " +
+                "JOIN sessions s ON ss.session_id = s.session_id " +
+                "WHERE s.session_name = ?";
+        PreparedStatement pstmt = conn.prepare(sql);
+        pstmt.setString(1, sessionName);
+        try (ResultSet rs = pstmt.executeQuery()) {
+            return rs.next() ? rs.getLong(1) : 0;
+        }
+    }
+
+    /**
+     * Reads the rows written since the snapshot, then streams the snapshot's
+     * drawings, each replaced by its latest row if it has one, then the rest
+     * of the rows' live drawings
+     */
+    private int loadSnapshotAndTail(PooledConnection conn, String sessionName, Consumer<String> drawings)
+            throws SQLException {
+        // Shape id -> its latest row, null if erased; in the order DrawingLog would hold them
+        Map<String, String> tail = new LinkedHashMap<>();
+        int[] unnamed = new int[1];
+        streamDrawingRows(conn, sessionName, (shapeId, data) -> {
+            tail.put(shapeId != null ? shapeId : "#" + unnamed[0]++, data);
+        });
+
+        int count = 0;
+        String sql = "SELECT ss.snapshot_data FROM session_snapshots ss " +
+                "JOIN sessions s ON ss.session_id = s.session_id " +
+                "WHERE s.session_name = ?";
+        PreparedStatement pstmt = conn.prepare(sql);
+        pstmt.setString(1, sessionName);
+        try (ResultSet rs = pstmt.executeQuery()) {
+            if (rs.next()) {
+                try (InputStream blob = rs.getBinaryStream(1);
+                     BufferedReader in = new BufferedReader(new InputStreamReader(
+                             new GZIPInputStream(blob), StandardCharsets.UTF_8))) {
+                    String drawing;
+                    while ((drawing = in.readLine()) != null) {
+                        String shapeId = shapeIdOf(drawing);
+                        if (shapeId != null && tail.containsKey(shapeId)) {
+                            // Saved again or erased since: the latest row takes its place
+                            drawing = tail.remove(shapeId);
+                        }
+                        if (drawing != null) {
+                            drawings.accept(drawing);
+                            count++;
+                        }
+                    }
+                } catch (IOException e) {
+                    System.err.println("Error reading snapshot of session " + sessionName + ": " + e.getMessage());
+                }
+            }
+        }
+
+        for (Iterator<String> it = tail.values().iterator(); it.hasNext(); ) {
+            String data = it.next();
+            it.remove();
+            if (data != null) {
+                drawings.accept(data);
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Receives one drawings row
+     */
+    private interface RowConsumer {
+        /**
+         * @param shapeId The row's shape id, or null if the drawing has none
+         * @param data The drawing's data, or null for a tombstone
+         */
+        void accept(String shapeId, String data);
+    }
+
+    /**
+     * Streams a session's drawings rows, in the order they were written
+     */
+    private void streamDrawingRows(PooledConnection conn, String sessionName, RowConsumer rows) throws SQLException {
+        // drawing_id is insertion order, and idx_session_id (session_id, drawing_id) serves it without a sort
+        String sql = "SELECT d.shape_id, d.drawing_data " +
+                "FROM drawings d " +
+                "JOIN sessions s ON d.session_id = s.session_id " +
+                "WHERE s.session_name = ? " +
+                "ORDER BY d.drawing_id ASC";
+
+        PreparedStatement pstmt = conn.prepare(sql);
+        pstmt.setFetchSize(LOAD_FETCH_SIZE);
+        pstmt.setString(1, sessionName);
+        try (ResultSet rs = pstmt.executeQuery()) {
+            while (rs.next()) {
+                rows.accept(rs.getString(1), rs.getString(2));
+            }
+        }
     }
 
     /**
@@ -117,15 +621,8 @@ public class SessionDao {
      * @return true if successful
      */
     public boolean clearSessionDrawings(String sessionName) {
-        Connection conn = dbConnection.getConnection();
-        String sql = "DELETE d FROM drawings d " +
-                "JOIN sessions s ON d.session_id = s.session_id " +
-                "WHERE s.session_name = ?";
-
-        try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
-            pstmt.setString(1, sessionName);
-            int rowsAffected = pstmt.executeUpdate();
-            System.out.println("Cleared " + rowsAffected + " drawings from session: " + sessionName);
+        try (PooledConnection conn = dbConnection.borrow()) {
+            executeClear(conn, sessionName);
             return true;
         } catch (SQLException e) {
             System.err.println("Error clearing session: " + e.getMessage());
@@ -133,16 +630,34 @@ public class SessionDao {
         }
     }
 
+    private void executeClear(PooledConnection conn, String sessionName) throws SQLException {
+        String sql = "DELETE d FROM drawings d " +
+                "JOIN sessions s ON d.session_id = s.session_id " +
+                "WHERE s.session_name = ?";
+
+        PreparedStatement pstmt = conn.prepare(sql);
+        pstmt.setString(1, sessionName);
+        int rowsAffected = pstmt.executeUpdate();
+
+        String snapshotSql = "DELETE ss FROM session_snapshots ss " +
+                "JOIN sessions s ON ss.session_id = s.session_id " +
+                "WHERE s.session_name = ?";
+        PreparedStatement snapshot = conn.prepare(snapshotSql);
+        snapshot.setString(1, sessionName);
+        snapshot.executeUpdate();
+        System.out.println("Cleared " + rowsAffected + " drawings from session: " + sessionName);
+    }
+
     /**
      * Deletes a session and all its drawings
      * @param sessionName The name of the session
      * @return true if successful
      */
     public boolean deleteSession(String sessionName) {
-        Connection conn = dbConnection.getConnection();
         String sql = "DELETE FROM sessions WHERE session_name = ?";
 
-        try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
+        try (PooledConnection conn = dbConnection.borrow()) {
+            PreparedStatement pstmt = conn.prepare(sql);
             pstmt.setString(1, sessionName);
             int rowsAffected = pstmt.executeUpdate();
             System.out.println("Deleted session: " + sessionName);
@@ -150,6 +665,9 @@ public class SessionDao {
         } catch (SQLException e) {
             System.err.println("Error deleting session: " + e.getMessage());
             return false;
+        } finally {
+            // Dropped once the row is gone, so the next save re-creates the session
+            sessionIds.remove(sessionName);
         }
     }
 
@@ -159,11 +677,10 @@ public class SessionDao {
      */
     public List<String> getAllSessions() {
         List<String> sessions = new ArrayList<>();
-        Connection conn = dbConnection.getConnection();
         String sql = "SELECT session_name FROM sessions ORDER BY last_modified DESC";
 
-        try (Statement stmt = conn.createStatement();
-             ResultSet rs = stmt.executeQuery(sql)) {
+        try (PooledConnection conn = dbConnection.borrow();
+             ResultSet rs = conn.prepare(sql).executeQuery()) {
 
             while (rs.next()) {
                 sessions.add(rs.getString("session_name"));
@@ -176,22 +693,27 @@ public class SessionDao {
     }
 
     /**
-     * Gets the total number of drawings in a session
+     * Gets the total number of drawings in a session: those in its snapshot plus
+     * those saved since. A drawing replaced or erased since the snapshot may be
+     * counted twice until the next one.
      * @param sessionName The name of the session
      * @return Number of drawings
      */
     public int getDrawingCount(String sessionName) {
-        Connection conn = dbConnection.getConnection();
-        String sql = "SELECT COUNT(*) as count " +
-                "FROM drawings d " +
-                "JOIN sessions s ON d.session_id = s.session_id " +
+        String sql = "SELECT " +
+                "(SELECT COUNT(*) FROM drawings d WHERE d.session_id = s.session_id AND d.drawing_data IS NOT NULL) + " +
+                "COALESCE((SELECT ss.shape_count FROM session_snapshots ss WHERE ss.session_id = s.session_id), 0) " +
+                "as count " +
+                "FROM sessions s " +
                 "WHERE s.session_name = ?";
 
-        try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
+        try (PooledConnection conn = dbConnection.borrow()) {
+            PreparedStatement pstmt = conn.prepare(sql);
             pstmt.setString(1, sessionName);
-            ResultSet rs = pstmt.executeQuery();
-            if (rs.next()) {
-                return rs.getInt("count");
+            try (ResultSet rs = pstmt.executeQuery()) {
+                if (rs.next()) {
+                    return rs.getInt("count");
+                }
             }
         } catch (SQLException e) {
             System.err.println("Error getting drawing count: " + e.getMessage());
@@ -206,14 +728,15 @@ public class SessionDao {
      * @return true if session exists
      */
     public boolean sessionExists(String sessionName) {
-        Connection conn = dbConnection.getConnection();
         String sql = "SELECT COUNT(*) as count FROM sessions WHERE session_name = ?";
 
-        try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
+        try (PooledConnection conn = dbConnection.borrow()) {
+            PreparedStatement pstmt = conn.prepare(sql);
             pstmt.setString(1, sessionName);
-            ResultSet rs = pstmt.executeQuery();
-            if (rs.next()) {
-                return rs.getInt("count") > 0;
+            try (ResultSet rs = pstmt.executeQuery()) {
+                if (rs.next()) {
+                    return rs.getInt("count") > 0;
+                }
             }
         } catch (SQLException e) {
             System.err.println("Error checking session existence: " + e.getMessage());
@@ -228,22 +751,22 @@ public class SessionDao {
      * @return SessionInfo object or null if not found
      */
     public SessionInfo getSessionInfo(String sessionName) {
-        Connection conn = dbConnection.getConnection();
         String sql = "SELECT session_id, session_name, created_at, last_modified " +
                 "FROM sessions " +
                 "WHERE session_name = ?";
 
-        try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
+        try (PooledConnection conn = dbConnection.borrow()) {
+            PreparedStatement pstmt = conn.prepare(sql);
             pstmt.setString(1, sessionName);
-            ResultSet rs = pstmt.executeQuery();
-
-            if (rs.next()) {
-                return new SessionInfo(
-                        rs.getInt("session_id"),
-                        rs.getString("session_name"),
-                        rs.getTimestamp("created_at"),
-                        rs.getTimestamp("last_modified")
-                );
+            try (ResultSet rs = pstmt.executeQuery()) {
+                if (rs.next()) {
+                    return new SessionInfo(
+                            rs.getInt("session_id"),
+                            rs.getString("session_name"),
+                            rs.getTimestamp("created_at"),
+                            rs.getTimestamp("last_modified")
+                    );
+                }
             }
         } catch (SQLException e) {
             System.err.println("Error getting session info: " + e.getMessage());
@@ -252,13 +775,28 @@ public class SessionDao {
         return null;
     }
 
-    public boolean deleteDrawingById(String shapeId) {
-        Connection conn = dbConnection.getConnection();
-        String sql = "DELETE FROM drawings WHERE drawing_data LIKE ?";
-
-        try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
-            pstmt.setString(1, shapeId + ":%");  // Match shape ID at start of drawing_data
+    /**
+     * Deletes a drawing from a session, by its shape id
+     * @param sessionName The name of the session
+     * @param shapeId The shape's id
+     * @return true if a drawing was deleted
+     */
+    public boolean deleteDrawing(String sessionName, String shapeId) {
+        try (PooledConnection conn = dbConnection.borrow()) {
+            int sessionId = getOrCreateSessionId(conn, sessionName);
+            if (sessionId == -1) {
+                return false;
+            }
+            PreparedStatement pstmt = conn.prepare(DELETE_DRAWING_SQL);
+            pstmt.setInt(1, sessionId);
+            pstmt.setString(2, shapeId);
             int rowsAffected = pstmt.executeUpdate();
+
+            // The shape may also be in the session's snapshot
+            PreparedStatement tombstone = conn.prepare(INSERT_TOMBSTONE_SQL);
+            tombstone.setInt(1, sessionId);
+            tombstone.setString(2, shapeId);
+            tombstone.executeUpdate();
             System.out.println("Deleted " + rowsAffected + " drawing(s) with ID: " + shapeId);
             return rowsAffected > 0;
         } catch (SQLException e) {
@@ -267,6 +805,21 @@ public class SessionDao {
         }
     }
 
+    private static void bindInsert(PreparedStatement pstmt, int sessionId, String drawingData) throws SQLException {
+        pstmt.setInt(1, sessionId);
+        pstmt.setString(2, shapeIdOf(drawingData));
+        pstmt.setString(3, drawingData);
+    }
+
+    /**
+     * @param drawingData Serialized shape, id:TYPE:...
+     * @return The shape's id, or null if it has none
+     */
+    private static String shapeIdOf(String drawingData) {
+        int idEnd = drawingData.indexOf(':');
+        return idEnd > 0 && idEnd <= 64 ? drawingData.substring(0, idEnd) : null;
+    }
+
     /**
      * Inner class to hold session metadata
      */
@@ -0,0 +1,285 @@
+package com.whiteboard.database;
+
+import com.whiteboard.common.util.Env;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Write-behind stage between sessions and the database. Writes are queued
+ * and a single background thread applies them in order, a batch at a time,
+ * in one transaction per batch. A batch is flushed once it reaches the batch
+ * size or has waited the flush interval. When the queue is full, new writes
+ * are refused and counted rather than making the session's shard wait. The
+ * enqueue methods report the refusal, and the session keeps the write (or
+ * the need for a snapshot) and hands it over again once there is room.
+ */
+public class WriteBehindQueue {
+
+    /** What a queued write does. */
+    enum Kind { SAVE, DELETE, CLEAR, SNAPSHOT }
+
+    /**
+     * One queued write.
+     */
+    static final class Write {
+        final Kind kind;
+        final String sessionName;
+        // Drawing data for SAVE, shape id for DELETE
+        final String value;
+        // The live board for SNAPSHOT
+        final List<String> drawings;
+        final long enqueuedNanos = System.nanoTime();
+
+        Write(Kind kind, String sessionName, String value, List<String> drawings) {
+            this.kind = kind;
+            this.sessionName = sessionName;
+            this.value = value;
+            this.drawings = drawings;
+        }
+    }
+
+    /**
+     * Applies a batch of writes
+     */
+    interface BatchWriter {
+        /**
+         * @param batch Writes in the order they were queued
+         * @return Number of the writes that were committed
+         */
+        int writeBatch(List<Write> batch);
+    }
+
+    private static final int BATCH_SIZE = Env.intEnv("WRITE_BEHIND_BATCH_SIZE", 500);
+    private static final int FLUSH_INTERVAL_MS = Env.intEnv("WRITE_BEHIND_FLUSH_MS", 50);
+    private static final int QUEUE_SIZE = Env.intEnv("WRITE_BEHIND_QUEUE_SIZE", 10000);
+    private static final long LAG_WARNING_MS = 1000;
+
+    private final BatchWriter writer;
+    private final BlockingQueue<Write> queue = new ArrayBlockingQueue<>(QUEUE_SIZE);
+    private final Thread thread;
+    private volatile boolean running = true;
+
+    // Flush tracking: writes are numbered as queued and marked done once applied
+    private final ReentrantLock progressLock = new ReentrantLock();
+    private final Condition progressed = progressLock.newCondition();
+    private long queuedCount;
+    private long doneCount;
+
+    private final AtomicLong writtenCount = new AtomicLong();
+    private final AtomicLong failedCount = new AtomicLong();
+    private final AtomicLong refusedCount = new AtomicLong();
+    private final AtomicLong batchCount = new AtomicLong();
+    private volatile long lastLagMillis;
+    private volatile long maxLagMillis;
+
+    WriteBehindQueue(BatchWriter writer) {
+        this.writer = writer;
+        this.thread = new Thread(this::run, "db-write-behind");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * Queues a write without waiting
+     * @return false if it was refused because the queue is full or closed
+     */
+    boolean enqueue(Kind kind, String sessionName, String value) {
+        return enqueue(new Write(kind, sessionName, value, null));
+    }
+
+    /**
+     * Queues a snapshot of a session's live board without waiting
+     * @return false if it was refused because the queue is full or closed
+     */
+    boolean enqueueSnapshot(String sessionName, List<String> drawings) {
+        return enqueue(new Write(Kind.SNAPSHOT, sessionName, null, drawings));
+    }
+
+    private boolean enqueue(Write write) {
+        Kind kind = write.kind;
+        String sessionName = write.sessionName;
+        if (!running) {
+            System.err.println("Write-behind queue closed, dropping " + kind + " for session: " + sessionName);
+            refusedCount.incrementAndGet();
+            return false;
+        }
+        progressLock.lock();
+        try {
+            // Counted up front so a concurrent flush() waits for this write too
+            queuedCount++;
+        } finally {
+            progressLock.unlock();
+        }
+        if (queue.offer(write)) {
+            return true;
+        }
+        // Callers are session shards: waiting here would stall every session on the shard.
+        // They hold on to what was refused and retry it, so the log only samples refusals.
+        if (refusedCount.incrementAndGet() % 1000 == 1) {
+            System.err.println("Write-behind queue full, refusing writes (" + kind + " for session: " + sessionName
+                    + ", " + refusedCount.get() + " refused so far)");
+        }
+        markDone(1);
+        return false;
+    }
+
+    private void run() {
+        List<Write> batch = new ArrayList<>(BATCH_SIZE);
+        while (running || !queue.isEmpty()) {
+            try {
+                Write first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(FLUSH_INTERVAL_MS);
+                while (batch.size() < BATCH_SIZE) {
+                    queue.drainTo(batch, BATCH_SIZE - batch.size());
+                    long remaining = deadline - System.nanoTime();
+                    if (batch.size() >= BATCH_SIZE || remaining <= 0 || !running) {
+                        break;
+                    }
+                    Write next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+                apply(batch);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    private void apply(List<Write> batch) {
+        int committed;
+        try {
+            committed = writer.writeBatch(batch);
+        } catch (RuntimeException e) {
+            System.err.println("Error writing batch to database: " + e.getMessage());
+            committed = 0;
+        }
+        batchCount.incrementAndGet();
+        writtenCount.addAndGet(committed);
+        failedCount.addAndGet(batch.size() - committed);
+
+        long lag = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - batch.get(0).enqueuedNanos);
+        lastLagMillis = lag;
+        if (lag > maxLagMillis) {
+            maxLagMillis = lag;
+        }
+        if (lag > LAG_WARNING_MS) {
+            System.err.println("Database write-behind is " + lag + " ms behind (" + queue.size() + " queued)");
+        }
+        markDone(batch.size());
+    }
+
+    private void markDone(int count) {
+        progressLock.lock();
+        try {
+            doneCount += count;
+            progressed.signalAll();
+        } finally {
+            progressLock.unlock();
+        }
+    }
+
+    /**
+     * Waits until every write queued before this call has been applied
+     * @param timeoutMillis How long to wait at most
+     * @return true if they all were
+     */
+    boolean flush(long timeoutMillis) {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        progressLock.lock();
+        try {
+            long target = queuedCount;
+            while (doneCount < target) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    return false;
+                }
+                progressed.awaitNanos(remaining);
+            }
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            progressLock.unlock();
+        }
+    }
+
+    /**
+     * Stops accepting writes and waits for the queued ones to be applied
+     * @param timeoutMillis How long to wait at most
+     */
+    void close(long timeoutMillis) {
+        if (!running) {
+            return;
+        }
+        running = false;
+        try {
+            thread.join(timeoutMillis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (!queue.isEmpty()) {
+            System.err.println("Write-behind queue closed with " + queue.size() + " writes not applied");
+        }
+        System.out.println(getStats());
+    }
+
+    /**
+     * @return Writes queued but not yet applied
+     */
+    public int getPendingCount() {
+        return queue.size();
+    }
+
+    /**
+     * @return Age of the oldest write in the last flushed batch, in milliseconds
+     */
+    public long getLagMillis() {
+        return lastLagMillis;
+    }
+
+    public long getMaxLagMillis() {
+        return maxLagMillis;
+    }
+
+    public long getWrittenCount() {
+        return writtenCount.get();
+    }
+
+    public long getFailedCount() {
+        return failedCount.get();
+    }
+
+    /**
+     * @return Writes refused because the queue was full or had closed
+     */
+    public long getRefusedCount() {
+        return refusedCount.get();
+    }
+
+    /**
+     * @return One line summarising throughput, lag and losses
+     */
+    public String getStats() {
+        return "Write-behind: " + writtenCount.get() + " written in " + batchCount.get() + " batches, "
+                + failedCount.get() + " failed, " + refusedCount.get() + " refused, " + queue.size()
+                + " pending, lag " + lastLagMillis + " ms (max " + maxLagMillis + " ms)";
+    }
+}
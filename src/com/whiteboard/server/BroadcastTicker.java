@@ -0,0 +1,130 @@
+package com.whiteboard.server;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+/**
+ * Coalesces a session's outbound drawing traffic into periodic ticks.
+ * Messages submitted during a tick are sent together at its end as one
+ * batched frame per client, and back-to-back appends to the same stroke are
+ * merged into a single APPEND. Order is always preserved: an append is only
+ * merged into the message queued right before it.
+ *
+ * Not thread-safe: used only on the session's shard, which also runs the ticks.
+ */
+class BroadcastTicker {
+
+    private final long tickMillis;
+    private final ScheduledExecutorService shard;
+    private final Collection<ClientConnection> clients;
+    private final BiConsumer<ClientConnection, OutboundFrame> deliver;
+    private List<Pending> pending = new ArrayList<>();
+    private boolean scheduled;
+
+    /**
+     * @param tickMillis Tick length in milliseconds
+     * @param shard The session's shard executor
+     * @param clients Live view of the session's clients
+     * @param deliver Sends a frame to one client
+     */
+    BroadcastTicker(long tickMillis, ScheduledExecutorService shard, Collection<ClientConnection> clients,
+            BiConsumer<ClientConnection, OutboundFrame> deliver) {
+        this.tickMillis = tickMillis;
+        this.shard = shard;
+        this.clients = clients;
+        this.deliver = deliver;
+    }
+
+    /**
+     * Queues a message for the next tick, starting one if none is pending.
+     * @param message The line to broadcast
+     * @param sender The client it came from (excluded from delivery), or null
+     */
+    void submit(String message, ClientConnection sender) {
+        if (!mergeAppend(message)) {
+            pending.add(new Pending(message, sender));
+        }
+        if (!scheduled) {
+            scheduled = true;
+            shard.schedule(this::flush, tickMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Folds APPEND:id:points into the last queued message if that is an
+     * append to the same stroke
+     * @return true if merged
+     */
+    private boolean mergeAppend(String message) {
+        if (!message.startsWith("APPEND:") || pending.isEmpty()) {
+            return false;
+        }
+        int idEnd = message.indexOf(':', 7);
+        if (idEnd < 0) {
+            return false;
+        }
+        Pending previous = pending.get(pending.size() - 1);
+        // Same "APPEND:id:" prefix, so the same stroke
+        if (!previous.message.startsWith(message.substring(0, idEnd + 1))) {
+            return false;
+        }
+        previous.message = previous.message + ";" + message.substring(idEnd + 1);
+        return true;
+    }
+
+    /**
+     * Sends everything queued so far. Clients that sent nothing this tick all
+     * share one batched frame; senders get a batch without their own messages.
+     */
+    void flush() {
+        List<Pending> batch = pending;
+        pending = new ArrayList<>();
+        scheduled = false;
+        if (batch.isEmpty()) {
+            return;
+        }
+
+        List<OutboundFrame> frames = new ArrayList<>(batch.size());
+        Set<ClientConnection> senders = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (Pending item : batch) {
+            frames.add(new OutboundFrame(item.message));
+            if (item.sender != null) {
+                senders.add(item.sender);
+            }
+        }
+
+        OutboundFrame shared = OutboundFrame.combine(frames);
+        for (ClientConnection client : clients) {
+            if (!senders.contains(client)) {
+                deliver.accept(client, shared);
+                continue;
+            }
+            List<OutboundFrame> others = new ArrayList<>(frames.size());
+            for (int i = 0; i < batch.size(); i++) {
+                if (batch.get(i).sender != client) {
+                    others.add(frames.get(i));
+                }
+            }
+            if (!others.isEmpty()) {
+                deliver.accept(client, OutboundFrame.combine(others));
+            }
+        }
+    }
+
+    private static final class Pending {
+        private String message;
+        private final ClientConnection sender;
+
+        Pending(String message, ClientConnection sender) {
+            this.message = message;
+            this.sender = sender;
+        }
+    }
+}
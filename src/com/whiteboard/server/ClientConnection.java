@@ -0,0 +1,46 @@
+package com.whiteboard.server;
+
+/**
+ * A connected client as seen by a {@link Session}.
+ * Implemented by both the blocking {@link ClientHandler} and the
+ * selector-driven {@link NioConnection}, so sessions don't care how
+ * the underlying socket is serviced.
+ */
+public interface ClientConnection {
+
+    /**
+     * Queues an encoded frame for delivery to this client. The same frame
+     * may be queued on many connections at once.
+     * Must be safe to call from any thread and must not block on the socket.
+     * @param frame The frame to send
+     */
+    void send(OutboundFrame frame);
+
+    /**
+     * Queues a single protocol line for delivery to this client.
+     * @param message The line to send, without a trailing newline
+     */
+    default void sendMessage(String message) {
+        send(new OutboundFrame(message));
+    }
+
+    /**
+     * @return A printable identifier for logging (address:port)
+     */
+    String getClientId();
+
+    /**
+     * @return Number of lines queued but not yet written
+     */
+    int getQueueDepth();
+
+    /**
+     * @return Number of lines discarded because this client fell behind
+     */
+    long getDroppedMessages();
+
+    /**
+     * Closes the connection; the client then leaves its session as usual.
+     */
+    void disconnect();
+}
@@ -1,22 +1,33 @@
 package com.whiteboard.server;
 
-import java.io.BufferedReader;
+import com.whiteboard.common.protocol.FrameReader;
+
+import java.io.BufferedOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
+import java.io.OutputStream;
 import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
 /**
  * Handles communication with an individual client.
- * Each client connection runs in a separate thread.
+ * Each client connection runs in a separate thread (platform or virtual,
+ * depending on the server mode) for reading, plus a writer thread that
+ * drains its bounded {@link OutboundQueue}, so a slow reader never blocks
+ * the thread that is broadcasting to it.
  */
-public class ClientHandler implements Runnable {
+public class ClientHandler implements Runnable, ClientConnection, OutboundQueue.OverflowHandler {
+
+    private static final int MAX_WRITE_BATCH = 256;
 
     private final Socket socket;
     private final WhiteboardServer server;
-    private BufferedReader in;
-    private PrintWriter out;
-    private Session currentSession;
+    private final OutboundQueue outbound;
+    private FrameReader in;
+    private OutputStream out;
+    private volatile boolean binary;
+    private volatile SessionHandle currentSession;
     private String clientId;
     private String username;
 
@@ -24,37 +35,33 @@ public class ClientHandler implements Runnable {
         this.socket = socket;
         this.server = server;
         this.clientId = socket.getInetAddress() + ":" + socket.getPort();
+        this.outbound = new OutboundQueue(ServerConfig.OUTBOUND_QUEUE_SIZE, ServerConfig.OVERFLOW_POLICY, this);
     }
 
     @Override
     public void run() {
         try {
-            in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-            out = new PrintWriter(socket.getOutputStream(), true);
+            in = new FrameReader(socket.getInputStream());
+            out = new BufferedOutputStream(socket.getOutputStream());
+            server.newWriterThread(this::writeLoop, "writer-" + clientId).start();
 
             String joinMessage = in.readLine();
             System.out.println("RAW JOIN MESSAGE: [" + joinMessage + "]");
-            if (joinMessage == null || !joinMessage.startsWith("JOIN:")) {
+            JoinRequest join = JoinRequest.parse(joinMessage);
+            if (join == null) {
                 System.err.println("Invalid JOIN from " + clientId + ": " + joinMessage);
                 return;
             }
 
-            // Expected: JOIN:sessionName:username
-            String[] parts = joinMessage.substring(5).split(":", 2);
-            if (parts.length != 2) {
-                System.err.println("Malformed JOIN from " + clientId);
-                return;
-            }
+            username = join.username;
+            binary = join.binary;
 
-            String sessionName = parts[0];
-            username = parts[1];
+            // Acknowledge join, ahead of the history the session replays to us
+            sendMessage(join.acknowledgement());
 
-            currentSession = server.getOrCreateSession(sessionName);
+            currentSession = server.openSession(join.sessionName);
             currentSession.addClient(this, username);
 
-            // Acknowledge join
-            sendMessage("JOINED:" + sessionName);
-
             String message;
             while ((message = in.readLine()) != null) {
 
@@ -73,13 +80,66 @@ public class ClientHandler implements Runnable {
         }
     }
 
-    public void sendMessage(String message) {
-        if (out != null) {
-            out.println(message);
+    @Override
+    public String getClientId() {
+        return clientId;
+    }
+
+    @Override
+    public void send(OutboundFrame frame) {
+        outbound.send(frame);
+    }
+
+    @Override
+    public int getQueueDepth() {
+        return outbound.getDepth();
+    }
+
+    @Override
+    public long getDroppedMessages() {
+        return outbound.getDroppedCount();
+    }
+
+    @Override
+    public void disconnect() {
+        // Closing the socket fails the blocking read, which runs cleanup()
+        try {
+            socket.close();
+        } catch (IOException e) {
+            System.err.println("Error closing slow client " + clientId + ": " + e.getMessage());
+        }
+    }
+
+    @Override
+    public List<String> resyncLines() {
+        SessionHandle session = currentSession;
+        return session != null ? session.resyncLines() : Collections.<String>emptyList();
+    }
+
+    /**
+     * Drains the outbound queue in batches, flushing once per batch.
+     * Frames are encoded once per wire format and shared with other clients.
+     */
+    private void writeLoop() {
+        List<OutboundFrame> batch = new ArrayList<>();
+        try {
+            while (outbound.takeBatch(batch, MAX_WRITE_BATCH)) {
+                for (OutboundFrame frame : batch) {
+                    out.write(frame.bytes(binary));
+                }
+                out.flush();
+                batch.clear();
+            }
+        } catch (IOException e) {
+            // A dead peer is noticed and cleaned up by the read loop
+            disconnect();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
     }
 
     private void cleanup() {
+        outbound.close();
         try {
             if (currentSession != null && username != null) {
                 currentSession.removeClient(username);
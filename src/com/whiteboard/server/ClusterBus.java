@@ -0,0 +1,56 @@
+package com.whiteboard.server;
+
+import java.io.IOException;
+
+/**
+ * Point-to-point transport between the nodes of a cluster.
+ * Messages from one node to another must arrive in the order they were sent.
+ */
+public interface ClusterBus {
+
+    /**
+     * Receives messages addressed to this node.
+     */
+    interface Listener {
+        /**
+         * @param fromNode Id of the sending node
+         * @param payload The message as sent
+         */
+        void onMessage(String fromNode, String payload);
+
+        /**
+         * Called when the link to a peer is lost in either direction. Messages
+         * to it that weren't delivered are gone, and it has forgotten this
+         * node's clients, as this node should forget its.
+         * @param node Id of that node
+         */
+        void onNodeDown(String node);
+    }
+
+    /**
+     * Starts receiving messages for a node
+     * @param localNode Id of this node
+     * @param listener Where incoming messages are delivered
+     * @throws IOException If the bus can't be opened
+     */
+    void start(String localNode, Listener listener) throws IOException;
+
+    /**
+     * Sends a message without waiting for it to be delivered. A message that
+     * can't be delivered is dropped and the link reported down.
+     * @param node Id of the receiving node
+     * @param payload The message; may contain any characters
+     */
+    void send(String node, String payload);
+
+    /**
+     * @param node Id of a receiving node
+     * @return Messages queued for it but not yet sent
+     */
+    int getQueueDepth(String node);
+
+    /**
+     * Stops the bus and releases its resources
+     */
+    void close();
+}
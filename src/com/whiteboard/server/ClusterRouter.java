@@ -0,0 +1,315 @@
+package com.whiteboard.server;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Spreads sessions over the nodes of a cluster. Every session has one owner
+ * node, chosen by rendezvous hashing of its name over the node ids, which
+ * holds the real {@link Session}. A client connected to any other node joins
+ * through a proxy that forwards its messages over the {@link ClusterBus}; at
+ * the owner it is represented by a {@link RemoteClient} that sends everything
+ * it receives back. All members of a session therefore meet in one place, so
+ * history, ordering, persistence and USER_LIST/USER_JOIN/USER_LEAVE are the
+ * same as on a single server.
+ *
+ * Bus messages are tab-separated: JOIN, MSG, LEAVE and RESYNC go from a
+ * client's node to the owner; DELIVER and DROP come back.
+ */
+public class ClusterRouter implements ClusterBus.Listener {
+
+    private static final String JOIN = "JOIN";
+    private static final String MSG = "MSG";
+    private static final String LEAVE = "LEAVE";
+    private static final String RESYNC = "RESYNC";
+    private static final String DELIVER = "DELIVER";
+    private static final String DROP = "DROP";
+
+    private final WhiteboardServer server;
+    private final String localNode;
+    private final List<String> nodes;
+    private final ClusterBus bus;
+    private final AtomicLong nextClientKey = new AtomicLong();
+    // Local clients of sessions owned elsewhere, by client key
+    private final Map<String, ProxySession> proxies = new ConcurrentHashMap<>();
+    // Clients on other nodes in sessions owned here, by node/client key
+    private final Map<String, RemoteClient> remoteClients = new ConcurrentHashMap<>();
+
+    /**
+     * @param server The server on this node
+     * @param localNode Id of this node
+     * @param nodes Ids of all nodes in the cluster, including this one
+     * @param bus Transport to the other nodes
+     */
+    public ClusterRouter(WhiteboardServer server, String localNode, Collection<String> nodes, ClusterBus bus) {
+        this.server = server;
+        this.localNode = localNode;
+        this.nodes = new ArrayList<>(nodes);
+        this.bus = bus;
+        if (!this.nodes.contains(localNode)) {
+            this.nodes.add(localNode);
+        }
+    }
+
+    void start() throws IOException {
+        bus.start(localNode, this);
+        System.out.println("Joined cluster as " + localNode + " (nodes: " + String.join(",", nodes) + ")");
+    }
+
+    void close() {
+        bus.close();
+    }
+
+    /**
+     * @param sessionName Name of a session
+     * @return Id of the node that owns it
+     */
+    public String ownerOf(String sessionName) {
+        String owner = null;
+        long best = Long.MIN_VALUE;
+        for (String node : nodes) {
+            long score = mix(((long) node.hashCode() << 32) ^ sessionName.hashCode());
+            if (owner == null || score > best) {
+                owner = node;
+                best = score;
+            }
+        }
+        return owner;
+    }
+
+    private static long mix(long h) {
+        h = (h ^ (h >>> 33)) * 0xff51afd7ed558ccdL;
+        h = (h ^ (h >>> 33)) * 0xc4ceb9fe1a85ec53L;
+        return h ^ (h >>> 33);
+    }
+
+    /**
+     * @param sessionName Name of the session a client is joining
+     * @return The session itself if this node owns it, otherwise a proxy to the owner
+     */
+    SessionHandle openSession(String sessionName) {
+        String owner = ownerOf(sessionName);
+        if (owner.equals(localNode)) {
+            return server.getOrCreateSession(sessionName);
+        }
+        return new ProxySession(owner, sessionName, localNode + "-" + nextClientKey.incrementAndGet());
+    }
+
+    @Override
+    public void onMessage(String fromNode, String payload) {
+        int typeEnd = payload.indexOf('\t');
+        String type = typeEnd < 0 ? payload : payload.substring(0, typeEnd);
+        String[] fields = payload.split("\t", type.equals(DELIVER) ? 3 : 4);
+        try {
+            switch (type) {
+                case JOIN:
+                    onJoin(fromNode, fields[1], fields[2], fields[3]);
+                    break;
+                case MSG: {
+                    RemoteClient client = remoteClients.get(fromNode + "/" + fields[2]);
+                    if (client != null) {
+                        client.session.broadcast(fields[3], client);
+                    }
+                    break;
+                }
+                case LEAVE: {
+                    RemoteClient client = remoteClients.remove(fromNode + "/" + fields[2]);
+                    if (client != null) {
+                        leave(client);
+                    }
+                    break;
+                }
+                case RESYNC: {
+                    RemoteClient client = remoteClients.get(fromNode + "/" + fields[2]);
+                    if (client != null) {
+                        client.session.executeWithHistory(
+                                () -> client.sendText(String.join("\n", client.session.resyncLinesFor(client))));
+                    }
+                    break;
+                }
+                case DELIVER: {
+                    ProxySession proxy = proxies.get(fields[1]);
+                    if (proxy != null) {
+                        proxy.deliver(fields[2]);
+                    }
+                    break;
+                }
+                case DROP: {
+                    ProxySession proxy = proxies.get(fields[1]);
+                    if (proxy != null) {
+                        proxy.client.disconnect();
+                    }
+                    break;
+                }
+                default:
+                    System.err.println("Unknown cluster message from " + fromNode + ": " + type);
+            }
+        } catch (ArrayIndexOutOfBoundsException e) {
+            System.err.println("Malformed cluster message from " + fromNode + ": " + payload);
+        }
+    }
+
+    private void onJoin(String fromNode, String sessionName, String clientKey, String username) {
+        if (!ownerOf(sessionName).equals(localNode)) {
+            System.err.println("Node " + fromNode + " sent a join for session '" + sessionName
+                    + "' which is not owned here");
+        }
+        Session session = server.getOrCreateSession(sessionName);
+        RemoteClient client = new RemoteClient(fromNode, clientKey, session, username);
+        remoteClients.put(client.getClientId(), client);
+        session.addClient(client, username);
+    }
+
+    private void leave(RemoteClient client) {
+        client.session.removeClient(client.username);
+        server.removeEmptySession(client.session.getSessionName());
+    }
+
+    @Override
+    public void onNodeDown(String node) {
+        // Its clients are gone: announce them as having left
+        String prefix = node + "/";
+        Iterator<Map.Entry<String, RemoteClient>> it = remoteClients.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, RemoteClient> entry = it.next();
+            if (entry.getKey().startsWith(prefix)) {
+                it.remove();
+                leave(entry.getValue());
+            }
+        }
+        // Our clients in its sessions have lost them: let them reconnect
+        for (ProxySession proxy : proxies.values()) {
+            if (proxy.owner.equals(node)) {
+                System.err.println("Owner of session '" + proxy.sessionName + "' went away, disconnecting "
+                        + proxy.client.getClientId());
+                proxy.client.disconnect();
+            }
+        }
+    }
+
+    /**
+     * Turns delivered text, possibly several newline-separated lines, back into one frame
+     */
+    private static OutboundFrame toFrame(String text) {
+        if (text.indexOf('\n') < 0) {
+            return new OutboundFrame(text);
+        }
+        String[] lines = text.split("\n");
+        List<OutboundFrame> frames = new ArrayList<>(lines.length);
+        for (String line : lines) {
+            frames.add(new OutboundFrame(line));
+        }
+        return OutboundFrame.combine(frames);
+    }
+
+    /**
+     * A local client's view of a session owned by another node.
+     */
+    private final class ProxySession implements SessionHandle {
+        private final String owner;
+        private final String sessionName;
+        private final String clientKey;
+        private volatile ClientConnection client;
+
+        ProxySession(String owner, String sessionName, String clientKey) {
+            this.owner = owner;
+            this.sessionName = sessionName;
+            this.clientKey = clientKey;
+        }
+
+        @Override
+        public String getSessionName() {
+            return sessionName;
+        }
+
+        @Override
+        public void addClient(ClientConnection client, String username) {
+            this.client = client;
+            proxies.put(clientKey, this);
+            bus.send(owner, JOIN + "\t" + sessionName + "\t" + clientKey + "\t" + username);
+        }
+
+        @Override
+        public void removeClient(String username) {
+            if (proxies.remove(clientKey) != null) {
+                bus.send(owner, LEAVE + "\t" + sessionName + "\t" + clientKey);
+            }
+        }
+
+        @Override
+        public void broadcast(String message, ClientConnection sender) {
+            bus.send(owner, MSG + "\t" + sessionName + "\t" + clientKey + "\t" + message);
+        }
+
+        /**
+         * The owner has the state, so ask it to send a resync; it arrives after
+         * whatever it had already sent.
+         */
+        @Override
+        public List<String> resyncLines() {
+            bus.send(owner, RESYNC + "\t" + sessionName + "\t" + clientKey);
+            return Collections.emptyList();
+        }
+
+        void deliver(String text) {
+            client.send(toFrame(text));
+        }
+    }
+
+    /**
+     * A client on another node, as a member of a session owned here.
+     */
+    private final class RemoteClient implements ClientConnection {
+        private final String node;
+        private final String clientKey;
+        private final Session session;
+        private final String username;
+
+        RemoteClient(String node, String clientKey, Session session, String username) {
+            this.node = node;
+            this.clientKey = clientKey;
+            this.session = session;
+            this.username = username;
+        }
+
+        @Override
+        public void send(OutboundFrame frame) {
+            sendText(frame.getText());
+        }
+
+        void sendText(String text) {
+            bus.send(node, DELIVER + "\t" + clientKey + "\t" + text);
+        }
+
+        @Override
+        public String getClientId() {
+            return node + "/" + clientKey;
+        }
+
+        /**
+         * @return Messages queued on the link to its node: what it is still to
+         *         receive from here, before its own node's queue
+         */
+        @Override
+        public int getQueueDepth() {
+            return bus.getQueueDepth(node);
+        }
+
+        @Override
+        public long getDroppedMessages() {
+            return 0;
+        }
+
+        @Override
+        public void disconnect() {
+            bus.send(node, DROP + "\t" + clientKey);
+        }
+    }
+}
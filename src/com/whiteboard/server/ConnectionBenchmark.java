@@ -0,0 +1,111 @@
+package com.whiteboard.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Rough in-process benchmark comparing server modes under many idle connections.
+ * Starts an in-memory server, opens the requested number of clients spread
+ * over small sessions, and reports join latency, heap growth and thread count.
+ *
+ * Usage: java com.whiteboard.server.ConnectionBenchmark [threads|virtual|nio] [connections] [port]
+ */
+public class ConnectionBenchmark {
+
+    private static final int USERS_PER_SESSION = 20;
+
+    public static void main(String[] args) throws Exception {
+        ServerMode mode = ServerMode.parse(args.length > 0 ? args[0] : "threads");
+        int connections = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+        int port = args.length > 2 ? Integer.parseInt(args[2]) : 18000;
+
+        WhiteboardServer server = new WhiteboardServer(mode, port, null);
+        Thread serverThread = new Thread(server::start, "benchmark-server");
+        serverThread.setDaemon(true);
+        serverThread.start();
+        waitForPort(port);
+
+        long heapBefore = usedHeap();
+        int threadsBefore = ManagementFactory.getThreadMXBean().getThreadCount();
+
+        List<Socket> sockets = new ArrayList<>(connections);
+        long[] latencies = new long[connections];
+        for (int i = 0; i < connections; i++) {
+            String session = "bench-" + (i / USERS_PER_SESSION);
+            long start = System.nanoTime();
+            sockets.add(join(port, session, "user" + i));
+            latencies[i] = System.nanoTime() - start;
+        }
+
+        long heapAfter = usedHeap();
+        int threadsAfter = ManagementFactory.getThreadMXBean().getThreadCount();
+
+        Arrays.sort(latencies);
+        System.out.println();
+        System.out.println("Mode:               " + mode);
+        System.out.println("Connections:        " + connections);
+        System.out.printf("Join latency p50:   %.2f ms%n", latencies[connections / 2] / 1e6);
+        System.out.printf("Join latency p99:   %.2f ms%n", latencies[(int) (connections * 0.99)] / 1e6);
+        System.out.printf("Heap growth:        %.1f MB (%.1f KB/connection)%n",
+                (heapAfter - heapBefore) / 1e6, (heapAfter - heapBefore) / 1e3 / connections);
+        System.out.println("Platform threads:   " + threadsBefore + " -> " + threadsAfter);
+
+        for (Socket socket : sockets) {
+            socket.close();
+        }
+        server.shutdown();
+    }
+
+    private static Socket join(int port, String session, String username) throws IOException {
+        Socket socket = new Socket("localhost", port);
+        OutputStream out = socket.getOutputStream();
+        out.write(("JOIN:" + session + ":" + username + "\n").getBytes(StandardCharsets.UTF_8));
+        out.flush();
+
+        // JOINED comes first, ahead of the history. The join is done once the
+        // session has replayed the board and sent USER_LIST, which follows it.
+        InputStream in = socket.getInputStream();
+        StringBuilder line = new StringBuilder();
+        int b;
+        while ((b = in.read()) != -1) {
+            if (b == '\n') {
+                if (line.toString().startsWith("USER_LIST:")) {
+                    return socket;
+                }
+                line.setLength(0);
+            } else {
+                line.append((char) b);
+            }
+        }
+        throw new IOException("Connection closed before USER_LIST");
+    }
+
+    private static void waitForPort(int port) throws InterruptedException {
+        for (int attempt = 0; attempt < 100; attempt++) {
+            try (Socket probe = new Socket()) {
+                probe.connect(new InetSocketAddress("localhost", port), 100);
+                return;
+            } catch (IOException e) {
+                Thread.sleep(50);
+            }
+        }
+        throw new IllegalStateException("Server did not start on port " + port);
+    }
+
+    private static long usedHeap() throws InterruptedException {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(100);
+        }
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
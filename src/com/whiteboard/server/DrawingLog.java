@@ -0,0 +1,202 @@
+package com.whiteboard.server;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * A session's drawing history: serialized shapes in the order they were drawn.
+ * An append-only array indexed by shape id. Deleting a shape leaves a
+ * tombstone (null) in its slot, and the array is compacted once tombstones
+ * outnumber live entries, so appends and deletes are O(1) amortised however
+ * long the history gets.
+ *
+ * Not thread-safe: used on the session's shard. {@link #size()} and
+ * {@link #bytes()} may be read from any thread.
+ */
+final class DrawingLog implements Iterable<String> {
+
+    private static final int INITIAL_CAPACITY = 64;
+    private static final int MIN_COMPACT_TOMBSTONES = 1024;
+    // Rough heap cost of an entry besides its characters: the strings' headers,
+    // the id key, its index node and the array slot
+    private static final int ENTRY_OVERHEAD_BYTES = 128;
+
+    private String[] entries = new String[INITIAL_CAPACITY];
+    private int end;
+    // Shape id -> slot of its live entry
+    private final Map<String, Integer> index = new HashMap<>();
+    private volatile int live;
+    private volatile long bytes;
+    private long version;
+
+    /**
+     * Adds a drawing. A drawing with the same id as a live one replaces it in
+     * place, keeping the old one's position in drawing order.
+     * @param drawing Serialized shape, id:TYPE:...
+     */
+    void append(String drawing) {
+        String id = idOf(drawing);
+        Integer previous = id != null ? index.get(id) : null;
+        if (previous != null) {
+            bytes += entryBytes(drawing) - entryBytes(entries[previous]);
+            entries[previous] = drawing;
+            version++;
+            return;
+        }
+        if (end == entries.length) {
+            grow();
+        }
+        if (id != null) {
+            index.put(id, end);
+        }
+        entries[end++] = drawing;
+        live++;
+        bytes += entryBytes(drawing);
+        version++;
+    }
+
+    /**
+     * Deletes the drawing with the given id
+     * @param shapeId The shape's id
+     * @return true if it was in the log
+     */
+    boolean remove(String shapeId) {
+        Integer slot = index.remove(shapeId);
+        if (slot == null) {
+            return false;
+        }
+        tombstone(slot);
+        version++;
+        if (end - live >= MIN_COMPACT_TOMBSTONES && end - live > live) {
+            compact();
+        }
+        return true;
+    }
+
+    void clear() {
+        entries = new String[INITIAL_CAPACITY];
+        end = 0;
+        index.clear();
+        live = 0;
+        bytes = 0;
+        version++;
+    }
+
+    /**
+     * @return Number of changes made so far; differs whenever the contents do
+     */
+    long version() {
+        return version;
+    }
+
+    /**
+     * @return Number of live drawings
+     */
+    int size() {
+        return live;
+    }
+
+    /**
+     * @return Estimated heap held by the live drawings; may be read from any thread
+     */
+    long bytes() {
+        return bytes;
+    }
+
+    /**
+     * @return The live drawings, oldest first
+     */
+    List<String> toList() {
+        List<String> drawings = new ArrayList<>(live);
+        for (String drawing : this) {
+            drawings.add(drawing);
+        }
+        return drawings;
+    }
+
+    /**
+     * Iterates live drawings, oldest first. Don't modify the log while iterating.
+     */
+    @Override
+    public Iterator<String> iterator() {
+        return new Iterator<String>() {
+            private int next = skipTombstones(0);
+
+            @Override
+            public boolean hasNext() {
+                return next < end;
+            }
+
+            @Override
+            public String next() {
+                if (next >= end) {
+                    throw new NoSuchElementException();
+                }
+                String drawing = entries[next];
+                next = skipTombstones(next + 1);
+                return drawing;
+            }
+        };
+    }
+
+    private int skipTombstones(int from) {
+        while (from < end && entries[from] == null) {
+            from++;
+        }
+        return from;
+    }
+
+    private void tombstone(int slot) {
+        bytes -= entryBytes(entries[slot]);
+        entries[slot] = null;
+        live--;
+    }
+
+    private void grow() {
+        if (end - live > live) {
+            // Mostly tombstones: reclaim them instead of growing
+            compact();
+            if (end < entries.length) {
+                return;
+            }
+        }
+        entries = Arrays.copyOf(entries, entries.length * 2);
+    }
+
+    /**
+     * Slides live entries down over the tombstones and re-indexes them
+     */
+    private void compact() {
+        int write = 0;
+        for (int read = 0; read < end; read++) {
+            String drawing = entries[read];
+            if (drawing == null) {
+                continue;
+            }
+            if (write != read) {
+                entries[write] = drawing;
+                String id = idOf(drawing);
+                if (id != null) {
+                    index.put(id, write);
+                }
+            }
+            write++;
+        }
+        Arrays.fill(entries, write, end, null);
+        end = write;
+    }
+
+    private static long entryBytes(String drawing) {
+        return ENTRY_OVERHEAD_BYTES + drawing.length();
+    }
+
+    private static String idOf(String drawing) {
+        int idEnd = drawing.indexOf(':');
+        return idEnd > 0 ? drawing.substring(0, idEnd) : null;
+    }
+}
@@ -0,0 +1,67 @@
+package com.whiteboard.server;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A {@link ClusterBus} connecting nodes that run in the same JVM. Each node
+ * receives on its own thread, in send order.
+ */
+public class InProcessClusterBus implements ClusterBus {
+
+    private static final Map<String, InProcessClusterBus> NODES = new ConcurrentHashMap<>();
+
+    private String localNode;
+    private Listener listener;
+    private ExecutorService inbox;
+    // Messages sent to this node and not yet handled
+    private final AtomicInteger pending = new AtomicInteger();
+
+    @Override
+    public void start(String localNode, Listener listener) {
+        this.localNode = localNode;
+        this.listener = listener;
+        this.inbox = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "cluster-inbox-" + localNode);
+            thread.setDaemon(true);
+            return thread;
+        });
+        NODES.put(localNode, this);
+    }
+
+    @Override
+    public void send(String node, String payload) {
+        InProcessClusterBus target = NODES.get(node);
+        if (target == null) {
+            System.err.println("Cluster node not reachable: " + node);
+            return;
+        }
+        String from = localNode;
+        target.pending.incrementAndGet();
+        target.inbox.execute(() -> {
+            target.pending.decrementAndGet();
+            target.listener.onMessage(from, payload);
+        });
+    }
+
+    @Override
+    public int getQueueDepth(String node) {
+        InProcessClusterBus target = NODES.get(node);
+        return target != null ? target.pending.get() : 0;
+    }
+
+    @Override
+    public void close() {
+        if (localNode == null || !NODES.remove(localNode, this)) {
+            return;
+        }
+        inbox.shutdown();
+        for (InProcessClusterBus peer : NODES.values()) {
+            String down = localNode;
+            peer.inbox.execute(() -> peer.listener.onNodeDown(down));
+        }
+    }
+}
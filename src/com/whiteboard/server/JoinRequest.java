@@ -0,0 +1,54 @@
+package com.whiteboard.server;
+
+import com.whiteboard.common.protocol.BinaryCodec;
+
+/**
+ * A parsed JOIN line: JOIN:sessionName:username, optionally followed by
+ * ;proto=bin1 when the client wants binary frames from the server.
+ */
+final class JoinRequest {
+
+    private static final String PROTOCOL_OPTION = ";proto=";
+
+    final String sessionName;
+    final String username;
+    final boolean binary;
+
+    private JoinRequest(String sessionName, String username, boolean binary) {
+        this.sessionName = sessionName;
+        this.username = username;
+        this.binary = binary;
+    }
+
+    /**
+     * @param joinMessage The first line received from a client
+     * @return The request, or null if the line isn't a well-formed JOIN
+     */
+    static JoinRequest parse(String joinMessage) {
+        if (joinMessage == null || !joinMessage.startsWith("JOIN:")) {
+            return null;
+        }
+
+        String body = joinMessage.substring(5);
+        boolean binary = false;
+        int option = body.lastIndexOf(PROTOCOL_OPTION);
+        if (option >= 0) {
+            binary = body.substring(option + PROTOCOL_OPTION.length()).equalsIgnoreCase(BinaryCodec.PROTOCOL_V1);
+            body = body.substring(0, option);
+        }
+
+        // Expected: sessionName:username
+        String[] parts = body.split(":", 2);
+        if (parts.length != 2) {
+            return null;
+        }
+        return new JoinRequest(parts[0], parts[1], binary);
+    }
+
+    /**
+     * @return The JOINED acknowledgement, echoing the negotiated protocol
+     */
+    String acknowledgement() {
+        return "JOINED:" + sessionName + (binary ? PROTOCOL_OPTION + BinaryCodec.PROTOCOL_V1 : "");
+    }
+}
@@ -0,0 +1,234 @@
+package com.whiteboard.server;
+
+import com.whiteboard.common.protocol.FrameDecoder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A client serviced by a {@link NioEventLoop}.
+ * Speaks the same protocol as {@link ClientHandler} (text lines and, if
+ * negotiated, binary frames), but decodes messages out of the non-blocking
+ * read buffer incrementally and keeps
+ * outbound lines in a bounded {@link OutboundQueue} until the channel is writable.
+ */
+public class NioConnection implements ClientConnection, OutboundQueue.OverflowHandler {
+
+    private static final int READ_BUFFER_SIZE = 8192;
+    private static final int MAX_GATHER = 64;
+
+    private final SocketChannel channel;
+    private final NioEventLoop loop;
+    private final WhiteboardServer server;
+    private final String clientId;
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+    private final OutboundQueue outbound;
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    private final Runnable flushTask = this::flush;
+    private SelectionKey key;
+    private final List<OutboundFrame> polled = new ArrayList<>(MAX_GATHER);
+    private final ByteBuffer[] writeBatch = new ByteBuffer[MAX_GATHER];
+    private int batchStart;
+    private int batchEnd;
+    private final FrameDecoder decoder = new FrameDecoder();
+    private volatile boolean closed;
+    private boolean binary;
+
+    // Only written on the loop thread
+    private volatile SessionHandle currentSession;
+    private String username;
+
+    public NioConnection(SocketChannel channel, NioEventLoop loop, WhiteboardServer server) throws IOException {
+        this.channel = channel;
+        this.loop = loop;
+        this.server = server;
+        this.clientId = String.valueOf(channel.getRemoteAddress());
+        this.outbound = new OutboundQueue(ServerConfig.OUTBOUND_QUEUE_SIZE, ServerConfig.OVERFLOW_POLICY, this);
+    }
+
+    void attach(SelectionKey key) {
+        this.key = key;
+    }
+
+    @Override
+    public String getClientId() {
+        return clientId;
+    }
+
+    @Override
+    public void send(OutboundFrame frame) {
+        if (closed) {
+            return;
+        }
+        outbound.send(frame);
+        if (loop.inEventLoop()) {
+            flush();
+        } else if (flushScheduled.compareAndSet(false, true)) {
+            loop.execute(flushTask);
+        }
+    }
+
+    @Override
+    public int getQueueDepth() {
+        return outbound.getDepth();
+    }
+
+    @Override
+    public long getDroppedMessages() {
+        return outbound.getDroppedCount();
+    }
+
+    @Override
+    public void disconnect() {
+        close();
+    }
+
+    @Override
+    public List<String> resyncLines() {
+        SessionHandle session = currentSession;
+        return session != null ? session.resyncLines() : Collections.<String>emptyList();
+    }
+
+    /**
+     * Reads whatever is available and dispatches every complete line.
+     */
+    void onReadable() {
+        int read;
+        try {
+            read = channel.read(readBuffer);
+        } catch (IOException e) {
+            System.err.println("Client handler error (" + clientId + "): " + e.getMessage());
+            close();
+            return;
+        }
+        if (read < 0) {
+            close();
+            return;
+        }
+
+        readBuffer.flip();
+        try {
+            decoder.feed(readBuffer.array(), readBuffer.position(), readBuffer.remaining(), this::handleLine);
+        } catch (IOException e) {
+            System.err.println("Protocol error from " + clientId + ": " + e.getMessage());
+            close();
+        }
+        readBuffer.clear();
+    }
+
+    private void handleLine(String message) {
+        if (closed) {
+            return;
+        }
+        if (currentSession == null) {
+            handleJoin(message);
+            return;
+        }
+
+        if (message.equals("DISCONNECT")) {
+            close();
+            return;
+        }
+
+        // Broadcast EVERYTHING else (DRAW, CLEAR, DELETE, etc.)
+        currentSession.broadcast(message, this);
+    }
+
+    private void handleJoin(String joinMessage) {
+        System.out.println("RAW JOIN MESSAGE: [" + joinMessage + "]");
+        JoinRequest join = JoinRequest.parse(joinMessage);
+        if (join == null) {
+            System.err.println("Invalid JOIN from " + clientId + ": " + joinMessage);
+            close();
+            return;
+        }
+
+        username = join.username;
+        binary = join.binary;
+
+        // Acknowledge join, ahead of the history the session replays to us
+        sendMessage(join.acknowledgement());
+
+        currentSession = server.openSession(join.sessionName);
+        currentSession.addClient(this, username);
+    }
+
+    /**
+     * Writes queued frames with gathering writes until the socket buffer fills up,
+     * then waits for OP_WRITE.
+     */
+    void flush() {
+        flushScheduled.set(false);
+        if (closed) {
+            return;
+        }
+        try {
+            while (true) {
+                if (batchStart == batchEnd && !refillWriteBatch()) {
+                    break;
+                }
+                channel.write(writeBatch, batchStart, batchEnd - batchStart);
+                while (batchStart < batchEnd && !writeBatch[batchStart].hasRemaining()) {
+                    writeBatch[batchStart++] = null;
+                }
+                if (batchStart < batchEnd) {
+                    key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                    return;
+                }
+            }
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+        } catch (IOException e) {
+            System.err.println("Client handler error (" + clientId + "): " + e.getMessage());
+            close();
+        }
+    }
+
+    private boolean refillWriteBatch() {
+        batchStart = 0;
+        batchEnd = outbound.pollBatch(polled, MAX_GATHER);
+        for (int i = 0; i < batchEnd; i++) {
+            writeBatch[i] = polled.get(i).buffer(binary);
+        }
+        polled.clear();
+        return batchEnd > 0;
+    }
+
+    /**
+     * Leaves the session and closes the channel. Safe to call from any thread.
+     */
+    void close() {
+        if (!loop.inEventLoop()) {
+            loop.execute(this::close);
+            return;
+        }
+        if (closed) {
+            return;
+        }
+        closed = true;
+        outbound.close();
+        Arrays.fill(writeBatch, null);
+        batchStart = batchEnd = 0;
+
+        if (currentSession != null && username != null) {
+            currentSession.removeClient(username);
+            server.removeEmptySession(currentSession.getSessionName());
+        }
+
+        try {
+            if (key != null) {
+                key.cancel();
+            }
+            channel.close();
+        } catch (IOException e) {
+            System.err.println("Error during cleanup: " + e.getMessage());
+        }
+        System.out.println("Client disconnected: " + clientId);
+    }
+}
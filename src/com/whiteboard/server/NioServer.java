@@ -0,0 +1,71 @@
+package com.whiteboard.server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Non-blocking front end for {@link WhiteboardServer}.
+ * One acceptor thread hands new channels round-robin to a fixed set of
+ * {@link NioEventLoop}s, so thread count stays constant however many
+ * users are connected.
+ */
+public class NioServer {
+
+    private final int port;
+    private final NioEventLoop[] loops;
+    private volatile boolean running = true;
+    private ServerSocketChannel serverChannel;
+
+    public NioServer(WhiteboardServer server, int port, int loopCount) throws IOException {
+        this.port = port;
+        this.loops = new NioEventLoop[loopCount];
+        for (int i = 0; i < loopCount; i++) {
+            loops[i] = new NioEventLoop(server);
+        }
+    }
+
+    /**
+     * Starts the event loops and accepts clients until {@link #shutdown()} is called.
+     */
+    public void start() throws IOException {
+        for (int i = 0; i < loops.length; i++) {
+            Thread thread = new Thread(loops[i], "nio-loop-" + i);
+            thread.start();
+        }
+
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port));
+        System.out.println("Server started successfully (NIO, " + loops.length
+                + " event loops). Waiting for clients...");
+
+        int next = 0;
+        while (running) {
+            try {
+                SocketChannel channel = serverChannel.accept();
+                System.out.println("New client connected: " + channel.getRemoteAddress());
+                loops[next].register(channel);
+                next = (next + 1) % loops.length;
+            } catch (IOException e) {
+                if (running) {
+                    System.err.println("Error accepting client connection: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    public void shutdown() {
+        running = false;
+        try {
+            if (serverChannel != null) {
+                serverChannel.close();
+            }
+        } catch (IOException e) {
+            System.err.println("Error closing server channel: " + e.getMessage());
+        }
+        for (NioEventLoop loop : loops) {
+            loop.shutdown();
+        }
+    }
+}
@@ -0,0 +1,168 @@
+package com.whiteboard.server;
+
+import com.whiteboard.common.protocol.BinaryCodec;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * One protocol line, encoded to bytes at most once per wire format however
+ * many clients it is fanned out to. Recipients share the encoded array and
+ * each gets its own read-only view, so a broadcast to N clients costs one
+ * text encode and at most one binary encode instead of N.
+ *
+ * A frame can also be a batch of lines ({@link #combine(List)}) that is
+ * written to the socket in one go.
+ *
+ * Only clients that negotiated binary frames know the STROKE shape. Text
+ * clients are sent each finished stroke as LINE segments sharing its id, so
+ * erasing one segment erases the stroke, and no live APPEND points.
+ */
+public final class OutboundFrame {
+
+    // Joined lazily for a batch, which is usually only ever encoded
+    private volatile String text;
+    private final List<OutboundFrame> parts;
+    private final boolean preview;
+    private volatile byte[] bytes;
+    private volatile byte[] binaryBytes;
+
+    public OutboundFrame(String text) {
+        this.text = text;
+        this.parts = null;
+        this.preview = text.startsWith("APPEND:");
+    }
+
+    private OutboundFrame(List<OutboundFrame> parts) {
+        boolean allPreview = true;
+        for (OutboundFrame part : parts) {
+            allPreview &= part.preview;
+        }
+        this.parts = parts;
+        this.preview = allPreview;
+    }
+
+    /**
+     * Batches frames so they are queued and written as one unit.
+     * @param frames Frames in send order (not modified afterwards)
+     * @return The single frame itself, or a frame covering all of them
+     */
+    public static OutboundFrame combine(List<OutboundFrame> frames) {
+        return frames.size() == 1 ? frames.get(0) : new OutboundFrame(frames);
+    }
+
+    /**
+     * @return The line, or the newline-joined lines of a batch
+     */
+    public String getText() {
+        String joined = text;
+        if (joined == null) {
+            StringBuilder builder = new StringBuilder();
+            for (OutboundFrame part : parts) {
+                if (builder.length() > 0) {
+                    builder.append('\n');
+                }
+                builder.append(part.getText());
+            }
+            joined = builder.toString();
+            text = joined;
+        }
+        return joined;
+    }
+
+    /**
+     * Preview messages are superseded by a later message, so losing one is harmless.
+     * Stroke appends are previews: the finished stroke is resent in full.
+     * @return true if every line in this frame is a preview
+     */
+    public boolean isPreview() {
+        return preview;
+    }
+
+    /**
+     * @return The UTF-8 encoded line including its trailing newline, with
+     *         strokes downgraded for text clients. Must not be modified.
+     */
+    public byte[] bytes() {
+        byte[] encoded = bytes;
+        if (encoded == null) {
+            // Racing encoders produce identical arrays, so no lock is needed
+            encoded = parts != null ? concat(false) : toTextClientLines(text).getBytes(StandardCharsets.UTF_8);
+            bytes = encoded;
+        }
+        return encoded;
+    }
+
+    /**
+     * @return The line as sent to a text client, newline-terminated: a STROKE
+     *         as LINE segments, an APPEND as nothing, anything else unchanged
+     */
+    private static String toTextClientLines(String line) {
+        if (line.startsWith("APPEND:")) {
+            return "";
+        }
+        int typeStart = line.indexOf(':') + 1;
+        if (typeStart <= 0 || !line.startsWith("STROKE:", typeStart)) {
+            return line + "\n";
+        }
+        String[] parts = line.split(":", -1);
+        if (parts.length != 9) {
+            return line + "\n";
+        }
+        String id = parts[0];
+        String style = ":" + parts[6] + ":" + parts[7];
+        String[] points = parts[8].split(";");
+        StringBuilder segments = new StringBuilder(points.length * (id.length() + 32));
+        String previous = points[0];
+        for (int i = Math.min(1, points.length - 1); i < points.length; i++) {
+            segments.append(id).append(":LINE:").append(previous.replace(',', ':'))
+                    .append(':').append(points[i].replace(',', ':')).append(style).append('\n');
+            previous = points[i];
+        }
+        return segments.toString();
+    }
+
+    /**
+     * @return The line as a {@link BinaryCodec} frame. Must not be modified.
+     */
+    public byte[] binaryBytes() {
+        byte[] encoded = binaryBytes;
+        if (encoded == null) {
+            encoded = parts != null ? concat(true) : BinaryCodec.encodeFrame(text);
+            binaryBytes = encoded;
+        }
+        return encoded;
+    }
+
+    private byte[] concat(boolean binary) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(parts.size() * 32);
+        for (OutboundFrame part : parts) {
+            byte[] encoded = part.bytes(binary);
+            out.write(encoded, 0, encoded.length);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * @param binary Whether the recipient negotiated binary frames
+     * @return The shared encoding for that wire format
+     */
+    public byte[] bytes(boolean binary) {
+        return binary ? binaryBytes() : bytes();
+    }
+
+    /**
+     * @param binary Whether the recipient negotiated binary frames
+     * @return A fresh read-only view over the shared bytes, positioned at the start
+     */
+    public ByteBuffer buffer(boolean binary) {
+        return ByteBuffer.wrap(bytes(binary)).asReadOnlyBuffer();
+    }
+
+    @Override
+    public String toString() {
+        return getText();
+    }
+}
@@ -0,0 +1,183 @@
+package com.whiteboard.server;
+
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded queue of frames waiting to be written to one client.
+ * Senders never block: when the queue is full the configured
+ * {@link OverflowPolicy} decides whether the message is dropped, the
+ * client is disconnected, or its backlog is replaced by a resync.
+ */
+public class OutboundQueue {
+
+    /**
+     * Callbacks into the owning connection for overflow handling.
+     */
+    public interface OverflowHandler {
+        /** Closes the connection. */
+        void disconnect();
+
+        /** @return Lines that bring the client back to the session's current state */
+        List<String> resyncLines();
+    }
+
+    private final ArrayDeque<OutboundFrame> messages = new ArrayDeque<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final int capacity;
+    private final OverflowPolicy policy;
+    private final OverflowHandler handler;
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong resyncs = new AtomicLong();
+    // Lines of the last resync still queued; they don't count against the capacity
+    private int resyncBacklog;
+    private boolean closed;
+
+    public OutboundQueue(int capacity, OverflowPolicy policy, OverflowHandler handler) {
+        this.capacity = capacity;
+        this.policy = policy;
+        this.handler = handler;
+    }
+
+    /**
+     * Queues a frame, applying the overflow policy if the queue is full.
+     * @param frame The frame to send
+     */
+    public void send(OutboundFrame frame) {
+        lock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            if (messages.size() - resyncBacklog < capacity) {
+                messages.add(frame);
+                notEmpty.signal();
+                return;
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        // Full: handle outside the lock, the handler may call back into the session
+        dropped.incrementAndGet();  // the overflowing message itself
+        if (policy == OverflowPolicy.DROP_PREVIEW && frame.isPreview()) {
+            return;
+        }
+        if (policy == OverflowPolicy.DISCONNECT) {
+            System.err.println("Outbound queue full, disconnecting slow client");
+            handler.disconnect();
+            return;
+        }
+        resync(handler.resyncLines());
+    }
+
+    /**
+     * Replaces the backlog with the given lines. May exceed the capacity once.
+     */
+    private void resync(Collection<String> lines) {
+        lock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            dropped.addAndGet(messages.size());
+            messages.clear();
+            for (String line : lines) {
+                messages.add(new OutboundFrame(line));
+            }
+            resyncBacklog = lines.size();
+            resyncs.incrementAndGet();
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+        System.err.println("Outbound queue full, resyncing slow client (" + lines.size() + " lines)");
+    }
+
+    /**
+     * Moves up to max queued frames into batch without waiting.
+     * @return Number of frames moved
+     */
+    public int pollBatch(List<OutboundFrame> batch, int max) {
+        lock.lock();
+        try {
+            return drainLocked(batch, max);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waits until frames are available and moves up to max of them into batch.
+     * @return false once the queue has been closed
+     */
+    public boolean takeBatch(List<OutboundFrame> batch, int max) throws InterruptedException {
+        lock.lock();
+        try {
+            while (messages.isEmpty() && !closed) {
+                notEmpty.await();
+            }
+            if (closed) {
+                return false;
+            }
+            drainLocked(batch, max);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private int drainLocked(List<OutboundFrame> batch, int max) {
+        int count = 0;
+        while (count < max && !messages.isEmpty()) {
+            batch.add(messages.poll());
+            count++;
+        }
+        resyncBacklog = Math.max(0, resyncBacklog - count);
+        return count;
+    }
+
+    /**
+     * Discards pending messages and wakes any waiting writer.
+     */
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            messages.clear();
+            resyncBacklog = 0;
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getDepth() {
+        lock.lock();
+        try {
+            return messages.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @return Messages discarded by overflow handling, including backlogs replaced by a resync
+     */
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    public long getResyncCount() {
+        return resyncs.get();
+    }
+}
@@ -0,0 +1,31 @@
+package com.whiteboard.server;
+
+/**
+ * What to do when a client's outbound queue is full because it reads
+ * slower than the session produces.
+ */
+public enum OverflowPolicy {
+    /** Drop preview-only traffic (stroke appends); anything else falls back to {@link #RESYNC}. */
+    DROP_PREVIEW,
+    /** Disconnect the slow client. */
+    DISCONNECT,
+    /** Discard the backlog and resend the board from the session's current state. */
+    RESYNC;
+
+    /**
+     * Parses a policy name, falling back to {@link #DROP_PREVIEW} for unknown values.
+     * @param value The configured policy name (case-insensitive, may be null)
+     * @return The matching policy
+     */
+    public static OverflowPolicy parse(String value) {
+        if (value != null) {
+            for (OverflowPolicy policy : values()) {
+                if (policy.name().equalsIgnoreCase(value.trim())) {
+                    return policy;
+                }
+            }
+            System.err.println("Unknown overflow policy '" + value + "', using " + DROP_PREVIEW);
+        }
+        return DROP_PREVIEW;
+    }
+}
@@ -0,0 +1,78 @@
+package com.whiteboard.server;
+
+import com.whiteboard.common.util.Env;
+
+/**
+ * Server settings read from the environment, with defaults suitable for
+ * running locally. Mirrors the DB_* variables used by DatabaseConnection.
+ */
+public final class ServerConfig {
+
+    /** Port the server listens on (SERVER_PORT). */
+    public static final int PORT = Env.intEnv("SERVER_PORT", 8000);
+
+    /** Socket servicing model (SERVER_MODE = threads | virtual | nio). */
+    public static final ServerMode MODE = ServerMode.parse(System.getenv("SERVER_MODE"));
+
+    /** Number of selector event loops in NIO mode (NIO_THREADS). */
+    public static final int NIO_THREADS = Env.intEnv("NIO_THREADS",
+            Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors())));
+
+    /** Maximum lines queued per client before the overflow policy applies (OUTBOUND_QUEUE_SIZE). */
+    public static final int OUTBOUND_QUEUE_SIZE = Env.intEnv("OUTBOUND_QUEUE_SIZE", 4096);
+
+    /** What to do with a client whose queue is full (OVERFLOW_POLICY = drop_preview | disconnect | resync). */
+    public static final OverflowPolicy OVERFLOW_POLICY = OverflowPolicy.parse(System.getenv("OVERFLOW_POLICY"));
+
+    /** Number of single-threaded executors sessions are spread over (SESSION_SHARDS). */
+    public static final int SESSION_SHARDS = Env.intEnv("SESSION_SHARDS", Runtime.getRuntime().availableProcessors());
+
+    /**
+     * Milliseconds to coalesce session broadcasts into one write per client
+     * (BROADCAST_TICK_MS, typically 8-16). 0 sends every message immediately.
+     */
+    public static final int BROADCAST_TICK_MS = Env.intEnv("BROADCAST_TICK_MS", 0);
+
+    /**
+     * Milliseconds a session is kept in memory after its last client leaves
+     * (SESSION_IDLE_TTL_MS), so reconnecting clients don't reload it. 0 drops it at once.
+     */
+    public static final int SESSION_IDLE_TTL_MS = Env.intEnv("SESSION_IDLE_TTL_MS", 300000);
+
+    /**
+     * Heap the sessions' drawing histories may use together, in megabytes
+     * (SESSION_MEMORY_MB); past it the least recently used are hibernated. 0 for no limit.
+     */
+    public static final int SESSION_MEMORY_MB = Env.intEnv("SESSION_MEMORY_MB",
+            (int) (Runtime.getRuntime().maxMemory() / 4 / (1024 * 1024)));
+
+    /**
+     * Changes after which a session writes a snapshot of its board to storage
+     * (SNAPSHOT_EVERY_CHANGES), letting the store drop the changes it covers.
+     * Sessions also snapshot when they go idle. 0 snapshots only when idle.
+     */
+    public static final int SNAPSHOT_EVERY_CHANGES = Env.intEnv("SNAPSHOT_EVERY_CHANGES", 10000);
+
+    /** Where sessions persist their drawings (STORAGE_BACKEND = mysql | journal | memory). */
+    public static final StorageBackend STORAGE_BACKEND = StorageBackend.parse(System.getenv("STORAGE_BACKEND"));
+
+    /** Directory for session journals with the journal backend (JOURNAL_DIR). */
+    public static final String JOURNAL_DIR = System.getenv("JOURNAL_DIR") != null ? System.getenv("JOURNAL_DIR")
+            : "journal";
+
+    /** Size of each journal segment file in megabytes (JOURNAL_SEGMENT_MB). */
+    public static final int JOURNAL_SEGMENT_MB = Env.intEnv("JOURNAL_SEGMENT_MB", 16);
+
+    /** Milliseconds between forcing journal writes to disk (JOURNAL_SYNC_MS); 0 forces every write. */
+    public static final int JOURNAL_SYNC_MS = Env.intEnv("JOURNAL_SYNC_MS", 1000);
+
+    /** Id of this node when running as part of a cluster (CLUSTER_NODE_ID); unset for a standalone server. */
+    public static final String CLUSTER_NODE_ID = System.getenv("CLUSTER_NODE_ID");
+
+    /** Cluster bus address of every node, as id=host:port,id=host:port (CLUSTER_NODES). */
+    public static final String CLUSTER_NODES = System.getenv("CLUSTER_NODES");
+
+    private ServerConfig() {
+        // Utility class - prevent instantiation
+    }
+}
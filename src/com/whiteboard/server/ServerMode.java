@@ -0,0 +1,30 @@
+package com.whiteboard.server;
+
+/**
+ * How the server services client sockets.
+ */
+public enum ServerMode {
+    /** One pooled platform thread per client, blocking reads (the original model). */
+    THREADS,
+    /** One virtual thread per client, same blocking code as THREADS (needs Java 21+). */
+    VIRTUAL,
+    /** A few selector event loops multiplexing all clients over non-blocking channels. */
+    NIO;
+
+    /**
+     * Parses a mode name, falling back to {@link #THREADS} for unknown values.
+     * @param value The configured mode name (case-insensitive, may be null)
+     * @return The matching mode
+     */
+    public static ServerMode parse(String value) {
+        if (value != null) {
+            for (ServerMode mode : values()) {
+                if (mode.name().equalsIgnoreCase(value.trim())) {
+                    return mode;
+                }
+            }
+            System.err.println("Unknown server mode '" + value + "', using " + THREADS);
+        }
+        return THREADS;
+    }
+}
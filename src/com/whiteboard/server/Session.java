@@ -1,37 +1,94 @@
 package com.whiteboard.server;
 
-import com.whiteboard.database.SessionDao;
+import com.whiteboard.storage.SessionStore;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Represents a shared whiteboard session where multiple clients can draw together.
- * Manages clients, broadcasts drawing events, and persists data to database.
+ * Manages clients, broadcasts drawing events, and persists data to a {@link SessionStore}.
+ *
+ * Each session is pinned to one {@link SessionShards shard} thread. Joins, leaves
+ * and broadcasts are queued to it and run there one at a time, in the order they
+ * arrived, so session state needs no locks and every client sees the same order.
  */
-public class Session {
+public class Session implements SessionHandle {
+
+    private static final int REPLAY_CHUNK_LINES = 512;
+    // Chunks a joiner may have queued before the next one is sent
+    private static final int REPLAY_WINDOW = 4;
+    private static final long REPLAY_RETRY_MS = 5;
+    // How often changes the store refused are offered to it again
+    private static final long STORE_RETRY_MS = 500;
+    // Refused changes a hibernated session holds before reloading its history to snapshot instead
+    private static final int MAX_UNSTORED = 1000;
 
     private final String sessionName;
-    private final Map<String, ClientHandler> clients = new ConcurrentHashMap<>();
-    private final List<String> drawingHistory = new CopyOnWriteArrayList<>();
-    private final SessionDao sessionDao;
-    private final boolean persistToDatabase;
+    private final Map<String, ClientConnection> clients = new ConcurrentHashMap<>();
+    // Null while hibernated: the store has it and it's reloaded when next needed
+    private volatile DrawingLog drawingHistory = new DrawingLog();
+    // Live shapes as of some history version, shared by joiners until the history changes
+    private BoardSnapshot snapshot;
+    // Clients still receiving the board; live messages for them are held until it's done
+    private final Map<ClientConnection, JoinReplay> replays = new IdentityHashMap<>();
+    // Strokes still being drawn, by shape id. Recorded in history once finished.
+    private final Map<String, OpenStroke> openStrokes = new LinkedHashMap<>();
+    // Where drawings are persisted, or null for an in-memory session
+    private final SessionStore store;
+    private final SessionShards shards;
+    private final ScheduledExecutorService shard;
+    // Batches broadcasts per tick when BROADCAST_TICK_MS is set, otherwise null
+    private final BroadcastTicker ticker;
+    // Joins handed out by the server whose addClient hasn't run yet
+    private final AtomicInteger pendingJoins = new AtomicInteger();
+    // When a client last joined, left or sent something; orders sessions for eviction
+    private volatile long lastUsedMillis = System.currentTimeMillis();
+    // Drawings recorded or erased since the store was last given a snapshot
+    private int changesSinceSnapshot;
+    // Set when a send on the shard overflowed and resynced its client with the whole board
+    private boolean resynced;
+    // Tasks that arrived while the history was loading, run in order once it's in; null when not loading
+    private List<Runnable> heldForLoad;
+    // Set when the store refused a change while the history was in memory: the store is
+    // missing something until it takes a snapshot, so later changes wait for that too
+    private boolean storeBehind;
+    // Changes the store refused while the history was hibernated, oldest first, to offer
+    // it again. Applied to the history if it's reloaded first, as the store lacks them.
+    private final Deque<StoreWrite> unstored = new ArrayDeque<>();
+    private boolean storeRetryScheduled;
+
+    /**
+     * Creates a new session with optional persistence, on shared shards
+     * @param sessionName Name of the session
+     * @param store Where to persist drawings (null for in-memory only)
+     */
+    public Session(String sessionName, SessionStore store) {
+        this(sessionName, store, SessionShards.common());
+    }
 
     /**
-     * Creates a new session with optional database persistence
+     * Creates a new session on a server's shards
      * @param sessionName Name of the session
-     * @param sessionDao Data access object for database operations (can be null)
-     * @param persistToDatabase Whether to save drawings to database
+     * @param store Where to persist drawings (null for in-memory only)
+     * @param shards The shards and loaders of the server that owns it
      */
-    public Session(String sessionName, SessionDao sessionDao, boolean persistToDatabase) {
+    Session(String sessionName, SessionStore store, SessionShards shards) {
         this.sessionName = sessionName;
-        this.sessionDao = sessionDao;
-        this.persistToDatabase = persistToDatabase;
+        this.store = store;
+        this.shards = shards;
+        this.shard = shards.forSession(sessionName);
+        this.ticker = ServerConfig.BROADCAST_TICK_MS > 0
+                ? new BroadcastTicker(ServerConfig.BROADCAST_TICK_MS, shard, clients.values(), this::deliver)
+                : null;
         System.out.println("New session created: " + sessionName +
-                (persistToDatabase ? " (with database)" : " (in-memory only)"));
+                (store != null ? " (persistent)" : " (in-memory only)"));
 
-        // Load existing drawings from database if persistence is enabled
-        if (persistToDatabase && sessionDao != null) {
-            loadFromDatabase();
+        // Load existing drawings if persistence is enabled. Started first on the
+        // shard, so any join or message for the session waits until it's done,
+        // and the caller (possibly holding a session map lock) doesn't wait for it.
+        if (store != null) {
+            execute(this::startLoad);
         }
     }
 
@@ -40,65 +97,318 @@ public class Session {
      * @param sessionName Name of the session
      */
     public Session(String sessionName) {
-        this(sessionName, null, false);
+        this(sessionName, null);
     }
 
     /**
-     * Loads drawings from database into memory
+     * Loads the saved drawings on the loader, so a large board (or the store
+     * catching up on queued writes first) doesn't hold up the other sessions
+     * on this shard. Tasks queued meanwhile are held, then run in order once
+     * the history is in. Called on the shard.
      */
-    private void loadFromDatabase() {
+    private void startLoad() {
+        heldForLoad = new ArrayList<>();
+        shards.load(() -> {
+            DrawingLog history = loadFromStore();
+            shard.execute(() -> finishLoad(history));
+        });
+    }
+
+    private void finishLoad(DrawingLog history) {
+        installHistory(history);
+        List<Runnable> held = heldForLoad;
+        heldForLoad = null;
+        for (Runnable task : held) {
+            // Held again, in order, if one of them hibernates the session and another reloads it
+            run(task);
+        }
+    }
+
+    /**
+     * Reads saved drawings straight into a new history as they are read
+     * @return The history, empty if the load failed
+     */
+    private DrawingLog loadFromStore() {
+        DrawingLog history = new DrawingLog();
         try {
-            List<String> savedDrawings = sessionDao.loadSessionDrawings(sessionName);
-            drawingHistory.addAll(savedDrawings);
-            System.out.println("Loaded " + savedDrawings.size() +
-                    " drawings from database for session: " + sessionName);
+            store.load(sessionName, history::append);
+            System.out.println("Loaded " + history.size() +
+                    " saved drawings for session: " + sessionName);
         } catch (Exception e) {
-            System.err.println("Error loading session from database: " + e.getMessage());
+            System.err.println("Error loading saved session: " + e.getMessage());
         }
+        return history;
     }
 
-    public synchronized void addClient(ClientHandler client, String username) {
-        System.out.println("Adding client: " + username);
-        clients.put(username, client);
-        System.out.println("Total clients now: " + clients.size());
+    /**
+     * @return The drawing history, reloading it from the store if the session
+     * was hibernated. Tasks that start out needing it use
+     * {@link #executeWithHistory} so the load doesn't run on the shard; this is
+     * for the few that find they need it part way, like a resync.
+     */
+    private DrawingLog history() {
+        DrawingLog history = drawingHistory;
+        if (history == null) {
+            System.out.println("Reactivating hibernated session: " + sessionName);
+            history = loadFromStore();
+            installHistory(history);
+        }
+        return history;
+    }
 
-        // Send drawing history to new client
-        for (String event : drawingHistory) {
-            client.sendMessage(event);
+    /**
+     * Makes a history read from the store the session's own, adding the
+     * changes the store refused while it was hibernated
+     */
+    private void installHistory(DrawingLog history) {
+        if (!unstored.isEmpty()) {
+            for (StoreWrite write : unstored) {
+                write.applyTo(history);
+            }
+            unstored.clear();
+            // The history has them now; a snapshot gives them to the store
+            storeBehind = true;
+            scheduleStoreRetry();
         }
+        drawingHistory = history;
+        snapshot = null;
+    }
 
-        // Send current user list to new client
-        System.out.println("Sending user list to new client");
-        sendUserList(client);
+    /**
+     * Drops the drawing history from memory, leaving it to the store until a
+     * join or resync needs it again. Changes made meanwhile go straight to the
+     * store. Does nothing for an in-memory session, or while the store lacks
+     * part of the board.
+     */
+    void hibernate() {
+        execute(() -> {
+            if (store == null || drawingHistory == null) {
+                return;
+            }
+            // Reactivating then reads one snapshot rather than every change since the last.
+            // Until the store takes it, the history is all there is, so it stays; the next sweep tries again.
+            if (!flushToStore()) {
+                System.out.println("Not hibernating session " + sessionName + ": its store hasn't caught up");
+                return;
+            }
+            drawingHistory = null;
+            snapshot = null;
+            System.out.println("Hibernated session: " + sessionName);
+        });
+    }
 
-        // Broadcast to all clients that new user joined
-        System.out.println("Broadcasting user join");
-        broadcastUserJoin(username);
+    /**
+     * @return true if the history can be dropped from memory and reloaded later
+     */
+    boolean canHibernate() {
+        return store != null && drawingHistory != null;
     }
 
-    public synchronized void removeClient(String username) {
-        clients.remove(username);
-        System.out.println("Client left session '" + sessionName + "'. Remaining clients: " + clients.size());
+    /**
+     * @return Estimated heap held by the drawing history; 0 while hibernated
+     */
+    long getResidentBytes() {
+        DrawingLog history = drawingHistory;
+        return history != null ? history.bytes() : 0;
+    }
+
+    /**
+     * @return When a client last joined, left or sent a message
+     */
+    long getLastUsedMillis() {
+        return lastUsedMillis;
+    }
 
-        broadcastUserLeave(username);
+    private void touch() {
+        lastUsedMillis = System.currentTimeMillis();
     }
 
-    private void sendUserList(ClientHandler client) {
-        String userList = "USER_LIST:" + String.join(",", clients.keySet());
-        client.sendMessage(userList);
+    /**
+     * Runs a task on this session's shard, after everything queued before it
+     * @param task Work that reads or changes session state
+     */
+    void execute(Runnable task) {
+        shard.execute(() -> run(task));
+    }
+
+    /**
+     * Runs a task on this session's shard after a delay. Dropped if the
+     * server has stopped by then.
+     * @param task Work that reads or changes session state
+     * @param delayMillis How long to wait first
+     */
+    void schedule(Runnable task, long delayMillis) {
+        try {
+            shard.schedule(() -> run(task), delayMillis, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // Shut down; what's unstored was offered to the store on the way out
+        }
+    }
+
+    /**
+     * Like {@link #execute}, for a task that needs the drawing history: if the
+     * session was hibernated, the history is loaded first, off the shard
+     * @param task Work that reads the history
+     */
+    void executeWithHistory(Runnable task) {
+        execute(() -> {
+            if (drawingHistory == null) {
+                System.out.println("Reactivating hibernated session: " + sessionName);
+                startLoad();
+                heldForLoad.add(task);
+            } else {
+                task.run();
+            }
+        });
+    }
+
+    private void run(Runnable task) {
+        if (heldForLoad != null) {
+            heldForLoad.add(task);
+            return;
+        }
+        try {
+            task.run();
+        } catch (RuntimeException e) {
+            System.err.println("Error in session '" + sessionName + "': " + e.getMessage());
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Marks a join in progress so the session isn't removed as empty before
+     * the client is added. Released by {@link #addClient}.
+     */
+    void reserveJoin() {
+        pendingJoins.incrementAndGet();
+        touch();
+    }
+
+    /**
+     * @return true if no clients are in or joining the session
+     */
+    boolean isIdle() {
+        return clients.isEmpty() && pendingJoins.get() == 0;
+    }
+
+    @Override
+    public void addClient(ClientConnection client, String username) {
+        executeWithHistory(() -> {
+            pendingJoins.updateAndGet(n -> n > 0 ? n - 1 : 0);
+            touch();
+            System.out.println("Adding client: " + username);
+            if (ticker != null) {
+                // Pending messages are already in the history sent below
+                ticker.flush();
+            }
+            clients.put(username, client);
+            System.out.println("Total clients now: " + clients.size());
+
+            // Stream the board as it is now, then the strokes still being drawn and
+            // the user list. Later messages are held and follow once it's all sent.
+            System.out.println("Sending board and user list to new client");
+            JoinReplay replay = new JoinReplay(client);
+            replays.put(client, replay);
+            replay.pump();
+
+            // Broadcast to all clients that new user joined
+            System.out.println("Broadcasting user join");
+            broadcastUserJoin(username);
+        });
+    }
+
+    @Override
+    public void removeClient(String username) {
+        execute(() -> {
+            ClientConnection client = clients.remove(username);
+            if (client != null) {
+                replays.remove(client);
+            }
+            touch();
+            System.out.println("Client left session '" + sessionName + "'. Remaining clients: " + clients.size());
+
+            if (client != null) {
+                finishStrokesOwnedBy(client);
+            }
+            broadcastUserLeave(username);
+            if (clients.isEmpty() && !flushToStore()) {
+                scheduleStoreRetry();
+            }
+        });
+    }
+
+    private String userListMessage() {
+        return "USER_LIST:" + String.join(",", clients.keySet());
+    }
+
+    /**
+     * @return The live shapes at the current history version, rebuilt only if it changed
+     */
+    private BoardSnapshot snapshot() {
+        DrawingLog history = history();
+        BoardSnapshot board = snapshot;
+        if (board == null || board.version != history.version()) {
+            board = new BoardSnapshot(history.version(), history.toList());
+            snapshot = board;
+        }
+        return board;
+    }
+
+    /**
+     * Builds the lines that bring a client that fell behind back in sync:
+     * a clear, the full drawing history and the current user list.
+     * Called on the shard, from an overflowing send.
+     * @return Lines to replace the client's outbound backlog with
+     */
+    @Override
+    public List<String> resyncLines() {
+        resynced = true;
+        BoardSnapshot board = snapshot();
+        List<String> lines = new ArrayList<>(board.lines.size() + openStrokes.size() + 2);
+        lines.add("CLEAR");
+        lines.addAll(board.lines);
+        for (OpenStroke stroke : openStrokes.values()) {
+            lines.add(stroke.snapshot());
+        }
+        lines.add(userListMessage());
+        return lines;
+    }
+
+    /**
+     * Like {@link #resyncLines()}, for a client that asked for a resync
+     * rather than overflowing a send here. A join replay still under way for
+     * it ends, as the lines cover everything it would have sent.
+     * Called on the shard.
+     * @param client The client to bring back in sync
+     */
+    List<String> resyncLinesFor(ClientConnection client) {
+        replays.remove(client);
+        return resyncLines();
     }
 
     private void broadcastUserJoin(String username) {
-        String message = "USER_JOIN:" + username;
-        for (ClientHandler client : clients.values()) {
-            client.sendMessage(message);
+        OutboundFrame frame = new OutboundFrame("USER_JOIN:" + username);
+        for (ClientConnection client : clients.values()) {
+            deliver(client, frame);
         }
     }
 
     private void broadcastUserLeave(String username) {
-        String message = "USER_LEAVE:" + username;
-        for (ClientHandler client : clients.values()) {
-            client.sendMessage(message);
+        OutboundFrame frame = new OutboundFrame("USER_LEAVE:" + username);
+        for (ClientConnection client : clients.values()) {
+            deliver(client, frame);
+        }
+    }
+
+    /**
+     * Sends a live frame to a client, or holds it if the client is still receiving the board
+     */
+    private void deliver(ClientConnection client, OutboundFrame frame) {
+        JoinReplay replay = replays.get(client);
+        if (replay != null) {
+            replay.hold(frame);
+        } else {
+            client.send(frame);
         }
     }
 
@@ -107,17 +417,49 @@ public class Session {
      * @param message The drawing data or CLEAR command
      * @param sender The client who sent the message
      */
-    public void broadcast(String message, ClientHandler sender) {
-        // Handle clear command
-        if (message.equals("CLEAR")) {
-            drawingHistory.clear();
+    @Override
+    public void broadcast(String message, ClientConnection sender) {
+        execute(() -> handleMessage(message, sender));
+    }
 
-            // Clear from database if persistence enabled
-            if (persistToDatabase && sessionDao != null) {
+    private void handleMessage(String message, ClientConnection sender) {
+        touch();
+        if (message.startsWith("APPEND:")) {
+            // Live points for an open stroke: relayed, but not recorded
+            if (!appendToStroke(message)) {
+                return;
+            }
+        } else if (message.startsWith("STROKE_END:")) {
+            OpenStroke stroke = openStrokes.remove(message.substring(11));
+            if (stroke == null) {
+                return;
+            }
+            // Others get the whole stroke, which also repairs any dropped appends
+            message = stroke.snapshot();
+            recordDrawing(message);
+        } else if (message.equals("CLEAR")) {
+            // Handle clear command. A hibernated session wakes up empty, with nothing to load.
+            drawingHistory = new DrawingLog();
+            snapshot = null;
+            openStrokes.clear();
+            changesSinceSnapshot = 0;
+            // Whatever the store was missing is gone from the board too
+            unstored.clear();
+            storeBehind = false;
+
+            // Clear from storage if persistence enabled
+            if (store != null) {
+                boolean taken;
                 try {
-                    sessionDao.clearSessionDrawings(sessionName);
+                    taken = store.clear(sessionName);
                 } catch (Exception e) {
-                    System.err.println("Error clearing session from database: " + e.getMessage());
+                    System.err.println("Error clearing saved session: " + e.getMessage());
+                    taken = false;
+                }
+                if (!taken) {
+                    // A snapshot of the empty board does the same
+                    storeBehind = true;
+                    scheduleStoreRetry();
                 }
             }
         } else if (message.startsWith("DELETE:")) {
@@ -125,53 +467,356 @@ public class Session {
             String shapeId = message.substring(7);
 
             // Remove from memory
-            drawingHistory.removeIf(drawing -> drawing.startsWith(shapeId + ":"));
+            DrawingLog history = drawingHistory;
+            if (history != null) {
+                history.remove(shapeId);
+            }
+            openStrokes.remove(shapeId);
 
-            // Remove from database
-            if (persistToDatabase && sessionDao != null) {
-                try {
-                    sessionDao.deleteDrawingById(shapeId);
-                } catch (Exception e) {
-                    System.err.println("Error deleting drawing from database: " + e.getMessage());
-                }
+            // Remove from storage
+            if (store != null) {
+                store(new StoreWrite(true, shapeId));
+                countChange();
             }
+        } else if (isStrokeStart(message)) {
+            // First point of a stroke: recorded once it's finished
+            openStrokes.put(message.substring(0, message.indexOf(':')), new OpenStroke(message, sender));
         } else {
-            // Add to memory
-            drawingHistory.add(message);
+            recordDrawing(message);
+        }
 
-            // Save to database if persistence enabled
-            if (persistToDatabase && sessionDao != null) {
-                try {
-                    sessionDao.saveDrawing(sessionName, message);
-                } catch (Exception e) {
-                    System.err.println("Error saving drawing to database: " + e.getMessage());
+        fanOut(message, sender);
+    }
+
+    /**
+     * Adds a finished drawing to memory and, if enabled, to storage
+     */
+    private void recordDrawing(String drawing) {
+        // Add to memory, unless hibernated
+        DrawingLog history = drawingHistory;
+        if (history != null) {
+            history.append(drawing);
+        }
+
+        // Hand to storage if persistence enabled; the database store writes in the background
+        if (store != null) {
+            store(new StoreWrite(false, drawing));
+            countChange();
+        }
+    }
+
+    /**
+     * Hands a change to the store. One it refuses isn't lost: with the history
+     * in memory, the next snapshot covers it; while hibernated, it's kept, and
+     * changes after it queue behind it so the store gets them in order.
+     */
+    private void store(StoreWrite write) {
+        boolean resident = drawingHistory != null;
+        if (resident ? storeBehind : !unstored.isEmpty()) {
+            if (!resident) {
+                unstored.add(write);
+            }
+            return;
+        }
+        if (!write.writeTo(store, sessionName)) {
+            if (resident) {
+                storeBehind = true;
+            } else {
+                unstored.add(write);
+            }
+            scheduleStoreRetry();
+        }
+    }
+
+    /**
+     * Brings the store up to date with the session: a snapshot if the board
+     * changed since the last one or the store refused a change, or, while
+     * hibernated, the changes it refused. Called on the shard.
+     * @return true if the store now has the whole board
+     */
+    boolean flushToStore() {
+        if (store == null) {
+            return true;
+        }
+        if (drawingHistory == null) {
+            while (!unstored.isEmpty()) {
+                if (!unstored.peekFirst().writeTo(store, sessionName)) {
+                    return false;
                 }
+                unstored.pollFirst();
             }
+            return true;
+        }
+        return (changesSinceSnapshot == 0 && !storeBehind) || writeSnapshot();
+    }
+
+    private void scheduleStoreRetry() {
+        if (!storeRetryScheduled) {
+            storeRetryScheduled = true;
+            schedule(this::retryStore, STORE_RETRY_MS);
+        }
+    }
+
+    /**
+     * Offers the store what it refused, again until it takes it
+     */
+    private void retryStore() {
+        storeRetryScheduled = false;
+        if (flushToStore()) {
+            return;
+        }
+        if (unstored.size() > MAX_UNSTORED) {
+            // Too many to hold one by one: bring the history back and snapshot it instead
+            storeRetryScheduled = true;
+            executeWithHistory(this::retryStore);
+        } else {
+            scheduleStoreRetry();
         }
+    }
+
+    /**
+     * Snapshots the board every SNAPSHOT_EVERY_CHANGES stored changes; one the
+     * store didn't take is tried again that many changes later. A hibernated
+     * session waits until its history is back in memory.
+     */
+    private void countChange() {
+        changesSinceSnapshot++;
+        if (ServerConfig.SNAPSHOT_EVERY_CHANGES > 0 && changesSinceSnapshot % ServerConfig.SNAPSHOT_EVERY_CHANGES == 0
+                && drawingHistory != null) {
+            writeSnapshot();
+        }
+    }
+
+    /**
+     * Snapshots the board if anything was stored since the last snapshot and the history is in memory
+     */
+    private void snapshotIfChanged() {
+        if (store != null && (changesSinceSnapshot > 0 || storeBehind) && drawingHistory != null) {
+            writeSnapshot();
+        }
+    }
 
-        // Broadcast to all clients except sender
-        for (ClientHandler client : clients.values()) {
+    /**
+     * Hands the store the live board, which replaces everything it holds for
+     * the session. If it isn't taken the count carries on, so it's tried again.
+     * @return true if the store took it
+     */
+    private boolean writeSnapshot() {
+        try {
+            if (store.snapshot(sessionName, history().toList())) {
+                changesSinceSnapshot = 0;
+                storeBehind = false;
+                return true;
+            }
+        } catch (Exception e) {
+            System.err.println("Error snapshotting session: " + e.getMessage());
+        }
+        return false;
+    }
+
+    private static boolean isStrokeStart(String message) {
+        int typeStart = message.indexOf(':') + 1;
+        return typeStart > 0 && message.startsWith("STROKE:", typeStart);
+    }
+
+    /**
+     * Extends an open stroke with the points of an APPEND:id:points message
+     * @return false if the stroke isn't open (finished, erased or unknown)
+     */
+    private boolean appendToStroke(String message) {
+        int idEnd = message.indexOf(':', 7);
+        if (idEnd < 0) {
+            return false;
+        }
+        OpenStroke stroke = openStrokes.get(message.substring(7, idEnd));
+        if (stroke == null) {
+            return false;
+        }
+        stroke.append(message.substring(idEnd + 1));
+        return true;
+    }
+
+    /**
+     * Records and broadcasts strokes left open by a client that went away mid-draw
+     */
+    private void finishStrokesOwnedBy(ClientConnection client) {
+        Iterator<Map.Entry<String, OpenStroke>> it = openStrokes.entrySet().iterator();
+        while (it.hasNext()) {
+            OpenStroke stroke = it.next().getValue();
+            if (stroke.owner == client) {
+                it.remove();
+                String drawing = stroke.snapshot();
+                recordDrawing(drawing);
+                fanOut(drawing, client);
+            }
+        }
+    }
+
+    /**
+     * Sends a message to all clients except the sender, encoding it only once
+     */
+    private void fanOut(String message, ClientConnection sender) {
+        if (ticker != null) {
+            ticker.submit(message, sender);
+            return;
+        }
+        OutboundFrame frame = new OutboundFrame(message);
+        for (ClientConnection client : clients.values()) {
             if (client != sender) {
-                client.sendMessage(message);
+                deliver(client, frame);
             }
         }
     }
 
     /**
-     * Manually save current session to database
+     * Manually save current session to storage
      */
-    public void saveToDatabase() {
-        if (sessionDao != null) {
-            try {
-                // Clear existing and save all current drawings
-                sessionDao.clearSessionDrawings(sessionName);
-                for (String drawing : drawingHistory) {
-                    sessionDao.saveDrawing(sessionName, drawing);
+    public void saveToStore() {
+        executeWithHistory(this::writeToStore);
+    }
+
+    private void writeToStore() {
+        if (store != null) {
+            // Replace what's stored with the current drawings
+            if (writeSnapshot()) {
+                System.out.println("Session saved: " + sessionName);
+            } else {
+                System.err.println("Session not saved: " + sessionName);
+            }
+        }
+    }
+
+    /**
+     * An immutable copy of the board's live shapes at one history version.
+     * Its chunks batch REPLAY_CHUNK_LINES shapes each and are encoded at most
+     * once per wire format, however many clients join before the next change.
+     */
+    private static final class BoardSnapshot {
+        private final long version;
+        private final List<String> lines;
+        private final List<OutboundFrame> chunks;
+
+        BoardSnapshot(long version, List<String> lines) {
+            this.version = version;
+            this.lines = Collections.unmodifiableList(lines);
+            this.chunks = new ArrayList<>(lines.size() / REPLAY_CHUNK_LINES + 1);
+            for (int start = 0; start < lines.size(); start += REPLAY_CHUNK_LINES) {
+                List<String> chunk = lines.subList(start, Math.min(lines.size(), start + REPLAY_CHUNK_LINES));
+                List<OutboundFrame> frames = new ArrayList<>(chunk.size());
+                for (String line : chunk) {
+                    frames.add(new OutboundFrame(line));
+                }
+                chunks.add(OutboundFrame.combine(frames));
+            }
+        }
+    }
+
+    /**
+     * Brings one joining client up to date. Walks a snapshot chunk by chunk,
+     * sending the next chunk only while the client's queue is short, so a big
+     * board never floods it and never holds up the shard. Live messages that
+     * arrive meanwhile are held, then sent after the snapshot: the client sees
+     * the board as of one version followed by exactly what changed since.
+     * Runs on the shard.
+     */
+    private final class JoinReplay {
+        private final ClientConnection client;
+        private final List<OutboundFrame> held = new ArrayList<>();
+        private BoardSnapshot board;
+        private List<String> tail;
+        private int nextChunk;
+
+        JoinReplay(ClientConnection client) {
+            this.client = client;
+            start();
+        }
+
+        /**
+         * Pins the current snapshot, plus the open strokes and user list at the same moment
+         */
+        private void start() {
+            board = snapshot();
+            tail = new ArrayList<>(openStrokes.size() + 1);
+            for (OpenStroke stroke : openStrokes.values()) {
+                tail.add(stroke.snapshot());
+            }
+            tail.add(userListMessage());
+            nextChunk = 0;
+        }
+
+        void hold(OutboundFrame frame) {
+            held.add(frame);
+            if (held.size() > ServerConfig.OUTBOUND_QUEUE_SIZE) {
+                // Too far behind to catch up by replaying what it missed: start over
+                System.err.println("Client " + client.getClientId() + " fell behind while joining, restarting replay");
+                held.clear();
+                client.sendMessage("CLEAR");
+                start();
+            }
+        }
+
+        void pump() {
+            if (replays.get(client) != this) {
+                return;  // left while joining
+            }
+            while (nextChunk < board.chunks.size()) {
+                if (client.getQueueDepth() >= REPLAY_WINDOW) {
+                    shard.schedule(() -> execute(this::pump), REPLAY_RETRY_MS, TimeUnit.MILLISECONDS);
+                    return;
+                }
+                if (sendResynced(board.chunks.get(nextChunk++))) {
+                    return;
+                }
+            }
+            for (String line : tail) {
+                if (sendResynced(new OutboundFrame(line))) {
+                    return;
+                }
+            }
+            for (OutboundFrame frame : held) {
+                if (sendResynced(frame)) {
+                    return;
                 }
-                System.out.println("Session manually saved to database: " + sessionName);
-            } catch (Exception e) {
-                System.err.println("Error manually saving session: " + e.getMessage());
             }
+            replays.remove(client);
+        }
+
+        /**
+         * Sends a frame. If it overflowed the client's queue into a resync, the
+         * client now has the whole board and held messages would only repeat it,
+         * so the replay ends there.
+         * @return true if the replay is over
+         */
+        private boolean sendResynced(OutboundFrame frame) {
+            resynced = false;
+            client.send(frame);
+            if (resynced) {
+                replays.remove(client);
+                return true;
+            }
+            return false;
+        }
+    }
+
+    /**
+     * A stroke that is still being drawn. Its line is the serialized STROKE
+     * shape, and appended points go on the end of its point list.
+     */
+    private static final class OpenStroke {
+        private final StringBuilder line;
+        private final ClientConnection owner;
+
+        OpenStroke(String line, ClientConnection owner) {
+            this.line = new StringBuilder(line);
+            this.owner = owner;
+        }
+
+        void append(String points) {
+            line.append(';').append(points);
+        }
+
+        String snapshot() {
+            return line.toString();
         }
     }
 
@@ -179,15 +824,53 @@ public class Session {
         return clients.isEmpty();
     }
 
+    @Override
     public String getSessionName() {
         return sessionName;
     }
 
+    /**
+     * @return Number of drawings in memory; 0 while hibernated
+     */
     public int getDrawingCount() {
-        return drawingHistory.size();
+        DrawingLog history = drawingHistory;
+        return history != null ? history.size() : 0;
     }
 
     public Set<String> getUsernames() {
         return clients.keySet();
     }
+
+    /**
+     * A change to hand the store: an appended drawing, or the id of a deleted one
+     */
+    private static final class StoreWrite {
+        private final boolean delete;
+        private final String value;
+
+        StoreWrite(boolean delete, String value) {
+            this.delete = delete;
+            this.value = value;
+        }
+
+        /**
+         * @return false if the store refused it
+         */
+        boolean writeTo(SessionStore store, String sessionName) {
+            try {
+                return delete ? store.delete(sessionName, value) : store.append(sessionName, value);
+            } catch (Exception e) {
+                System.err.println("Error " + (delete ? "deleting" : "saving") + " drawing: " + e.getMessage());
+                return false;
+            }
+        }
+
+        void applyTo(DrawingLog history) {
+            if (delete) {
+                history.remove(value);
+            } else {
+                history.append(value);
+            }
+        }
+    }
 }
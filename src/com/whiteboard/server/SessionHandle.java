@@ -0,0 +1,41 @@
+package com.whiteboard.server;
+
+import java.util.List;
+
+/**
+ * What a connection needs from the session it joined. Implemented by
+ * {@link Session} itself and, in a cluster, by a proxy that forwards to the
+ * node owning the session (see {@link ClusterRouter}).
+ */
+public interface SessionHandle {
+
+    /**
+     * @return Name of the session
+     */
+    String getSessionName();
+
+    /**
+     * Adds a client, replays the session to it and announces it to the others
+     * @param client The joining client
+     * @param username Name shown to other users
+     */
+    void addClient(ClientConnection client, String username);
+
+    /**
+     * Removes a client and announces that it left
+     * @param username Name the client joined with
+     */
+    void removeClient(String username);
+
+    /**
+     * Handles a message from a client and relays it to everyone else
+     * @param message The protocol line
+     * @param sender The client it came from
+     */
+    void broadcast(String message, ClientConnection sender);
+
+    /**
+     * @return Lines that bring a client that fell behind back in sync
+     */
+    List<String> resyncLines();
+}
@@ -0,0 +1,143 @@
+package com.whiteboard.server;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides which sessions stay in memory. A session whose last client left is
+ * kept warm for an idle TTL, so clients reconnecting after a network blip
+ * find it as they left it instead of reloading it from storage. And when the
+ * drawing histories held in memory add up to more than the memory budget,
+ * the least recently used sessions give theirs up: idle ones are dropped,
+ * active ones are hibernated, their history spilled to the store and
+ * reloaded when a join next needs it.
+ *
+ * Sweeps the server's sessions on its own thread every SWEEP_INTERVAL_MS.
+ * Sessions without a store can't be hibernated, only dropped once idle.
+ */
+final class SessionHibernator {
+
+    private static final long SWEEP_INTERVAL_MS = 1000;
+
+    private final WhiteboardServer server;
+    private final Map<String, Session> sessions;
+    private final long idleTtlMillis;
+    private final long budgetBytes;
+    private final ScheduledExecutorService sweeper;
+
+    private final AtomicLong expired = new AtomicLong();
+    private final AtomicLong evicted = new AtomicLong();
+    private final AtomicLong hibernated = new AtomicLong();
+
+    /**
+     * @param server Server whose sessions are swept
+     * @param sessions Its sessions by name
+     * @param idleTtlMillis How long an empty session is kept; 0 drops it when its last client leaves
+     * @param budgetBytes Memory the drawing histories may use together; 0 for no limit
+     */
+    SessionHibernator(WhiteboardServer server, Map<String, Session> sessions, long idleTtlMillis, long budgetBytes) {
+        this.server = server;
+        this.sessions = sessions;
+        this.idleTtlMillis = idleTtlMillis;
+        this.budgetBytes = budgetBytes;
+        this.sweeper = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "session-hibernator");
+            thread.setDaemon(true);
+            return thread;
+        });
+        sweeper.scheduleWithFixedDelay(this::sweep, SWEEP_INTERVAL_MS, SWEEP_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return true if empty sessions are kept until their idle TTL runs out
+     */
+    boolean keepsIdleSessions() {
+        return idleTtlMillis > 0;
+    }
+
+    private void sweep() {
+        try {
+            long now = System.currentTimeMillis();
+            List<Candidate> resident = new ArrayList<>();
+            long total = 0;
+            for (Session session : sessions.values()) {
+                if (idleTtlMillis > 0 && session.isIdle() && now - session.getLastUsedMillis() >= idleTtlMillis) {
+                    expired.incrementAndGet();
+                    server.evictSession(session);
+                    continue;
+                }
+                long bytes = session.getResidentBytes();
+                if (bytes > 0) {
+                    total += bytes;
+                    resident.add(new Candidate(session, bytes));
+                }
+            }
+            if (budgetBytes > 0 && total > budgetBytes) {
+                shed(resident, total);
+            }
+        } catch (RuntimeException e) {
+            System.err.println("Error sweeping sessions: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Frees the least recently used histories until the total is back within budget
+     */
+    private void shed(List<Candidate> resident, long total) {
+        resident.sort(Comparator.comparingLong(candidate -> candidate.lastUsedMillis));
+        for (Candidate candidate : resident) {
+            if (total <= budgetBytes) {
+                break;
+            }
+            Session session = candidate.session;
+            if (session.isIdle()) {
+                evicted.incrementAndGet();
+                server.evictSession(session);
+            } else if (session.canHibernate()) {
+                hibernated.incrementAndGet();
+                session.hibernate();
+            } else {
+                continue;
+            }
+            total -= candidate.bytes;
+        }
+        if (total > budgetBytes) {
+            System.err.println("Session memory over budget: " + (total >> 20) + " MB of "
+                    + (budgetBytes >> 20) + " MB held by sessions that can't be hibernated");
+        }
+    }
+
+    void close() {
+        sweeper.shutdownNow();
+        System.out.println(getStats());
+    }
+
+    /**
+     * @return One line summarising sessions expired, evicted and hibernated
+     */
+    String getStats() {
+        return "Session hibernation: " + expired.get() + " expired idle, " + evicted.get()
+                + " evicted over budget, " + hibernated.get() + " hibernated";
+    }
+
+    /**
+     * A session's position in the eviction order, read once so it holds still while sorting
+     */
+    private static final class Candidate {
+        private final Session session;
+        private final long bytes;
+        private final long lastUsedMillis;
+
+        Candidate(Session session, long bytes) {
+            this.session = session;
+            this.bytes = bytes;
+            this.lastUsedMillis = session.getLastUsedMillis();
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package com.whiteboard.server;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A fixed set of single-threaded executors that sessions are pinned to.
+ * A session always hashes to the same shard, so everything it does runs on
+ * one thread in submission order, while different sessions spread across
+ * shards (and cores) without contending with each other.
+ *
+ * Loading a session's board from storage can take a while, so it runs on a
+ * separate pool of loader threads rather than holding up the other sessions
+ * on the shard.
+ *
+ * Each server owns its own set, so stopping one server (say, one node of an
+ * in-process cluster) leaves the others running.
+ */
+final class SessionShards {
+
+    // Numbers the sets, so threads of servers sharing a JVM can be told apart
+    private static final AtomicInteger NEXT_ID = new AtomicInteger();
+    private static SessionShards common;
+
+    private final ScheduledExecutorService[] shards;
+    private final ExecutorService loaders;
+
+    /**
+     * @param count Number of shards, and of loader threads
+     */
+    SessionShards(int count) {
+        String prefix = "session-" + NEXT_ID.getAndIncrement() + "-";
+        this.shards = new ScheduledExecutorService[Math.max(1, count)];
+        for (int i = 0; i < shards.length; i++) {
+            String name = prefix + "shard-" + i;
+            shards[i] = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, name);
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        AtomicInteger next = new AtomicInteger();
+        this.loaders = Executors.newFixedThreadPool(shards.length, runnable -> {
+            Thread thread = new Thread(runnable, prefix + "loader-" + next.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * @return The set used by sessions created without a server; never shut down
+     */
+    static synchronized SessionShards common() {
+        if (common == null) {
+            common = new SessionShards(ServerConfig.SESSION_SHARDS);
+        }
+        return common;
+    }
+
+    /**
+     * Runs a session load on a loader thread, or on the caller once the
+     * loaders have been shut down
+     * @param task Reads a board from storage and hands it back to the session's shard
+     */
+    void load(Runnable task) {
+        try {
+            loaders.execute(task);
+        } catch (RejectedExecutionException e) {
+            task.run();
+        }
+    }
+
+    /**
+     * @param sessionName Name of the session
+     * @return The executor that owns that session
+     */
+    ScheduledExecutorService forSession(String sessionName) {
+        return shards[Math.floorMod(sessionName.hashCode(), shards.length)];
+    }
+
+    /**
+     * Finishes the loads under way, then runs the tasks already queued or
+     * scheduled on every shard and stops them. Sessions can't be used afterwards.
+     * @param timeoutMillis How long to wait for loads and queued tasks to finish
+     */
+    void shutdown(long timeoutMillis) {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        // Loads hand their boards to the shards, so the shards stay open until they're in
+        loaders.shutdown();
+        try {
+            if (!loaders.awaitTermination(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+                System.err.println("Session loads still running after " + timeoutMillis + " ms");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (ScheduledExecutorService shard : shards) {
+            shard.shutdown();
+        }
+        try {
+            for (ScheduledExecutorService shard : shards) {
+                if (!shard.awaitTermination(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+                    System.err.println("Session shards still busy after " + timeoutMillis + " ms, stopping them");
+                    break;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (ScheduledExecutorService shard : shards) {
+            shard.shutdownNow();
+        }
+        loaders.shutdownNow();
+    }
+}
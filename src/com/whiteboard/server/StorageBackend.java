@@ -0,0 +1,30 @@
+package com.whiteboard.server;
+
+/**
+ * Where sessions persist their drawings.
+ */
+public enum StorageBackend {
+    /** MySQL, through SessionDao; falls back to memory-only if it can't be set up. */
+    MYSQL,
+    /** Local memory-mapped journal files; no database needed. */
+    JOURNAL,
+    /** Nothing is persisted. */
+    MEMORY;
+
+    /**
+     * Parses a backend name, falling back to {@link #MYSQL} for unknown values.
+     * @param value The configured backend name (case-insensitive, may be null)
+     * @return The matching backend
+     */
+    public static StorageBackend parse(String value) {
+        if (value != null) {
+            for (StorageBackend backend : values()) {
+                if (backend.name().equalsIgnoreCase(value.trim())) {
+                    return backend;
+                }
+            }
+            System.err.println("Unknown storage backend '" + value + "', using " + MYSQL);
+        }
+        return MYSQL;
+    }
+}
@@ -0,0 +1,317 @@
+package com.whiteboard.server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A {@link ClusterBus} over TCP. Every node listens on its own address and
+ * keeps one outgoing connection per peer, opened on first use and reopened
+ * after a failure. Messages are length-prefixed UTF-8; the first message on a
+ * connection names the sending node.
+ *
+ * The two connections between a pair of nodes form one link. If either of
+ * them fails, a send can't be queued, or a peer connects again while its old
+ * connection still looks open, both connections are closed, whatever was
+ * still queued is dropped and the peer is reported down. The other node sees
+ * its connections close and does the same, so both ends forget each other's
+ * clients together.
+ */
+public class TcpClusterBus implements ClusterBus {
+
+    private static final int MAX_PENDING = 65536;
+    private static final int MAX_MESSAGE_LENGTH = 16 * 1024 * 1024;
+    private static final long RECONNECT_DELAY_MS = 1000;
+
+    private final Map<String, InetSocketAddress> nodes;
+    private final Map<String, Peer> peers = new ConcurrentHashMap<>();
+    // Current incoming connection from each node
+    private final Map<String, Socket> inbound = new ConcurrentHashMap<>();
+    private final AtomicLong dropped = new AtomicLong();
+    private volatile boolean running;
+    private String localNode;
+    private Listener listener;
+    private ServerSocket serverSocket;
+
+    /**
+     * @param nodes Address of every node in the cluster, including this one
+     */
+    public TcpClusterBus(Map<String, InetSocketAddress> nodes) {
+        this.nodes = nodes;
+    }
+
+    /**
+     * Parses a node list of the form id=host:port,id=host:port
+     * @param spec The list, as given in CLUSTER_NODES
+     * @return Node addresses by id, in the order given
+     */
+    public static Map<String, InetSocketAddress> parseNodes(String spec) {
+        Map<String, InetSocketAddress> nodes = new LinkedHashMap<>();
+        if (spec == null) {
+            return nodes;
+        }
+        for (String entry : spec.split(",")) {
+            String[] idAndAddress = entry.trim().split("=", 2);
+            if (idAndAddress.length != 2) {
+                System.err.println("Ignoring cluster node without an address: " + entry);
+                continue;
+            }
+            int colon = idAndAddress[1].lastIndexOf(':');
+            try {
+                nodes.put(idAndAddress[0], new InetSocketAddress(idAndAddress[1].substring(0, colon),
+                        Integer.parseInt(idAndAddress[1].substring(colon + 1))));
+            } catch (RuntimeException e) {
+                System.err.println("Ignoring invalid cluster node address: " + entry);
+            }
+        }
+        return Collections.unmodifiableMap(nodes);
+    }
+
+    @Override
+    public void start(String localNode, Listener listener) throws IOException {
+        InetSocketAddress address = nodes.get(localNode);
+        if (address == null) {
+            throw new IOException("Node " + localNode + " is not in the cluster node list");
+        }
+        this.localNode = localNode;
+        this.listener = listener;
+        this.serverSocket = new ServerSocket(address.getPort());
+        this.running = true;
+        startDaemon(this::acceptLoop, "cluster-accept");
+        System.out.println("Cluster bus listening on port " + address.getPort() + " as node " + localNode);
+    }
+
+    @Override
+    public void send(String node, String payload) {
+        Peer peer = peers.computeIfAbsent(node, Peer::new);
+        if (!peer.queue.offer(payload)) {
+            dropped.incrementAndGet();
+            linkDown(node, "queue to it is full");
+        }
+    }
+
+    @Override
+    public int getQueueDepth(String node) {
+        Peer peer = peers.get(node);
+        return peer != null ? peer.queue.size() : 0;
+    }
+
+    /**
+     * @return Messages to other nodes discarded because their link failed or fell behind
+     */
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        try {
+            if (serverSocket != null) {
+                serverSocket.close();
+            }
+        } catch (IOException e) {
+            System.err.println("Error closing cluster bus: " + e.getMessage());
+        }
+        for (Peer peer : peers.values()) {
+            peer.closeSocket();
+        }
+        for (Socket socket : inbound.values()) {
+            closeQuietly(socket);
+        }
+    }
+
+    private void acceptLoop() {
+        while (running) {
+            try {
+                Socket socket = serverSocket.accept();
+                startDaemon(() -> readLoop(socket), "cluster-reader");
+            } catch (IOException e) {
+                if (running) {
+                    System.err.println("Error accepting cluster connection: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    private void readLoop(Socket socket) {
+        String from = null;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()))) {
+            from = readMessage(in);
+            Socket previous = inbound.put(from, socket);
+            if (previous != null) {
+                // It reconnected, so its side of the old link is gone, whatever ours says
+                closeQuietly(previous);
+                linkDown(from, "reconnected");
+            }
+            while (running) {
+                listener.onMessage(from, readMessage(in));
+            }
+        } catch (EOFException e) {
+            // Peer closed the connection
+        } catch (IOException e) {
+            if (running) {
+                System.err.println("Cluster connection error (" + from + "): " + e.getMessage());
+            }
+        }
+        // Only if this is still the current connection: a replaced one was reported already
+        if (from != null && inbound.remove(from, socket)) {
+            linkDown(from, "disconnected");
+        }
+        closeQuietly(socket);
+    }
+
+    /**
+     * Tears down both directions of the link to a node and reports it down
+     * @param reason Why, for the log
+     */
+    private synchronized void linkDown(String node, String reason) {
+        if (!running) {
+            return;
+        }
+        System.err.println("Cluster link to " + node + " lost (" + reason + ")");
+        Socket in = inbound.remove(node);
+        if (in != null) {
+            closeQuietly(in);
+        }
+        Peer peer = peers.get(node);
+        if (peer != null) {
+            peer.reset();
+        }
+        listener.onNodeDown(node);
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            System.err.println("Error closing cluster connection: " + e.getMessage());
+        }
+    }
+
+    private static String readMessage(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > MAX_MESSAGE_LENGTH) {
+            throw new IOException("Invalid cluster message length: " + length);
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void startDaemon(Runnable task, String name) {
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Outgoing connection to one node, written by its own thread so senders never block.
+     */
+    private final class Peer {
+        private final String node;
+        private final BlockingQueue<String> queue = new LinkedBlockingQueue<>(MAX_PENDING);
+        private volatile Socket socket;
+        private volatile DataOutputStream out;
+
+        Peer(String node) {
+            this.node = node;
+            startDaemon(this::writeLoop, "cluster-writer-" + node);
+        }
+
+        private void writeLoop() {
+            while (running) {
+                DataOutputStream stream = null;
+                try {
+                    String payload = queue.poll(1, TimeUnit.SECONDS);
+                    if (payload == null) {
+                        continue;
+                    }
+                    stream = connect();
+                    while (payload != null) {
+                        writeMessage(stream, payload);
+                        payload = queue.poll();
+                    }
+                    stream.flush();
+                } catch (IOException e) {
+                    // Lost with the connection: whatever was in the stream buffer and the queue
+                    dropped.incrementAndGet();
+                    System.err.println("Cluster send to " + node + " failed: " + e.getMessage());
+                    if (stream == null || stream == out) {
+                        linkDown(node, "send failed");
+                    }
+                    sleepQuietly(RECONNECT_DELAY_MS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+
+        private DataOutputStream connect() throws IOException {
+            if (out != null) {
+                return out;
+            }
+            InetSocketAddress address = nodes.get(node);
+            if (address == null) {
+                throw new IOException("unknown node");
+            }
+            socket = new Socket(address.getHostString(), address.getPort());
+            socket.setTcpNoDelay(true);
+            out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            writeMessage(out, localNode);
+            return out;
+        }
+
+        private void writeMessage(DataOutputStream out, String payload) throws IOException {
+            byte[] bytes = payload.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+
+        /**
+         * Closes the connection and drops the messages still queued for it
+         */
+        void reset() {
+            closeSocket();
+            int discarded = queue.size();
+            queue.clear();
+            if (discarded > 0) {
+                dropped.addAndGet(discarded);
+                System.err.println("Dropped " + discarded + " queued cluster messages to " + node);
+            }
+        }
+
+        void closeSocket() {
+            out = null;
+            Socket current = socket;
+            socket = null;
+            if (current != null) {
+                closeQuietly(current);
+            }
+        }
+
+        private void sleepQuietly(long millis) {
+            try {
+                Thread.sleep(millis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
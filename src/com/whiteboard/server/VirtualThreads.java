@@ -0,0 +1,60 @@
+package com.whiteboard.server;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Access to virtual threads without requiring a Java 21 compiler.
+ * The server still builds and runs on Java 11; on runtimes without
+ * virtual threads these helpers return null and callers fall back
+ * to platform threads.
+ */
+final class VirtualThreads {
+
+    private VirtualThreads() {
+        // Utility class - prevent instantiation
+    }
+
+    /**
+     * @return true if the running JVM supports virtual threads
+     */
+    static boolean isSupported() {
+        return newThreadFactory("probe-") != null;
+    }
+
+    /**
+     * Creates a factory for named virtual threads.
+     * @param prefix Thread name prefix, a counter is appended
+     * @return The factory, or null if virtual threads are unavailable
+     */
+    static ThreadFactory newThreadFactory(String prefix) {
+        try {
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, prefix, 0L);
+            return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException | LinkageError e) {
+            return null;
+        }
+    }
+
+    /**
+     * Creates an executor that starts a new virtual thread for each task.
+     * @param prefix Thread name prefix
+     * @return The executor, or null if virtual threads are unavailable
+     */
+    static ExecutorService newThreadPerTaskExecutor(String prefix) {
+        ThreadFactory factory = newThreadFactory(prefix);
+        if (factory == null) {
+            return null;
+        }
+        try {
+            Method method = java.util.concurrent.Executors.class
+                    .getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+            return (ExecutorService) method.invoke(null, factory);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+}
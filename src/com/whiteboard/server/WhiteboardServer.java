@@ -1,14 +1,20 @@
 package com.whiteboard.server;
 
 import com.whiteboard.database.SessionDao;
+import com.whiteboard.storage.JournalSessionStore;
+import com.whiteboard.storage.SessionStore;
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.file.Paths;
+import java.util.Collection;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -16,23 +22,99 @@ import java.util.concurrent.TimeUnit;
  * Acts as the central hub for all communication between clients.
  */
 public class WhiteboardServer {
-    private static final int PORT = 8000;
+    // How long an empty session whose store is behind waits before it tries to leave again
+    private static final long EVICT_RETRY_MS = 500;
     private final Map<String, Session> sessions = new ConcurrentHashMap<>();
-    private final ExecutorService threadPool = Executors.newCachedThreadPool();
+    private final ServerMode mode;
+    private final int port;
+    private final ExecutorService threadPool;
+    private final ThreadFactory writerThreadFactory;
     private volatile boolean running = true;
-    private SessionDao sessionDao;
-    private static final boolean ENABLE_DATABASE = true;
+    private volatile ServerSocket serverSocket;
+    private NioServer nioServer;
+    private ClusterRouter cluster;
+    private final SessionStore store;
+    private final SessionHibernator hibernator;
+    private final SessionShards shards = new SessionShards(ServerConfig.SESSION_SHARDS);
 
     public WhiteboardServer() {
-        // Initialize database if enabled
-        if (ENABLE_DATABASE) {
+        this(ServerConfig.MODE, ServerConfig.PORT, createSessionStore(ServerConfig.STORAGE_BACKEND));
+
+        // Join a cluster if configured
+        if (ServerConfig.CLUSTER_NODE_ID != null) {
+            Map<String, InetSocketAddress> nodes = TcpClusterBus.parseNodes(ServerConfig.CLUSTER_NODES);
             try {
-                sessionDao = new SessionDao();
-            } catch (Exception e) {
-                System.err.println("Failed to initialize database: " + e.getMessage());
-                System.out.println("Running without database persistence.");
+                joinCluster(ServerConfig.CLUSTER_NODE_ID, nodes.keySet(), new TcpClusterBus(nodes));
+            } catch (IOException e) {
+                System.err.println("Failed to join cluster: " + e.getMessage());
+                System.out.println("Running as a standalone server.");
+            }
+        }
+    }
+
+    /**
+     * Creates a server with explicit settings
+     * @param mode How client sockets are serviced
+     * @param port Port to listen on
+     * @param store Where sessions persist their drawings (null for in-memory only)
+     */
+    public WhiteboardServer(ServerMode mode, int port, SessionStore store) {
+        this.mode = mode;
+        this.port = port;
+        this.store = store;
+        this.threadPool = createClientExecutor(mode);
+        this.writerThreadFactory = mode == ServerMode.VIRTUAL ? VirtualThreads.newThreadFactory("writer-") : null;
+        this.hibernator = new SessionHibernator(this, sessions, Math.max(0, ServerConfig.SESSION_IDLE_TTL_MS),
+                Math.max(0, ServerConfig.SESSION_MEMORY_MB) * 1024L * 1024L);
+    }
+
+    /**
+     * Makes this server one node of a cluster. Call before start().
+     * @param nodeId Id of this node
+     * @param nodeIds Ids of every node, including this one
+     * @param bus Transport to the other nodes
+     * @throws IOException If the bus can't be started
+     */
+    public void joinCluster(String nodeId, Collection<String> nodeIds, ClusterBus bus) throws IOException {
+        ClusterRouter router = new ClusterRouter(this, nodeId, nodeIds, bus);
+        router.start();
+        this.cluster = router;
+    }
+
+    private static SessionStore createSessionStore(StorageBackend backend) {
+        switch (backend) {
+            case JOURNAL:
+                try {
+                    return new JournalSessionStore(Paths.get(ServerConfig.JOURNAL_DIR),
+                            ServerConfig.JOURNAL_SEGMENT_MB * 1024 * 1024, ServerConfig.JOURNAL_SYNC_MS);
+                } catch (Exception e) {
+                    System.err.println("Failed to open journal storage: " + e.getMessage());
+                    System.out.println("Running without persistence.");
+                }
+                return null;
+            case MYSQL:
+                try {
+                    return new SessionDao();
+                } catch (Exception e) {
+                    System.err.println("Failed to initialize database: " + e.getMessage());
+                    System.out.println("Running without database persistence.");
+                }
+                return null;
+            default:
+                return null;
+        }
+    }
+
+    private static ExecutorService createClientExecutor(ServerMode mode) {
+        if (mode == ServerMode.VIRTUAL) {
+            ExecutorService executor = VirtualThreads.newThreadPerTaskExecutor("client-");
+            if (executor != null) {
+                return executor;
             }
+            System.err.println("Virtual threads are not available on this JVM ("
+                    + System.getProperty("java.version") + "), using platform threads.");
         }
+        return Executors.newCachedThreadPool();
     }
 
 
@@ -42,9 +124,15 @@ public class WhiteboardServer {
     }
 
     public void start() {
-        System.out.println("Whiteboard Server starting on port " + PORT);
+        System.out.println("Whiteboard Server starting on port " + port + " (" + mode + " mode)");
 
-        try (ServerSocket serverSocket = new ServerSocket(PORT)) {
+        if (mode == ServerMode.NIO) {
+            startNio();
+            return;
+        }
+
+        try (ServerSocket serverSocket = new ServerSocket(port)) {
+            this.serverSocket = serverSocket;
             System.out.println("Server started successfully. Waiting for clients...");
 
             while (running) {
@@ -68,26 +156,123 @@ public class WhiteboardServer {
         }
     }
 
+    private void startNio() {
+        try {
+            nioServer = new NioServer(this, port, ServerConfig.NIO_THREADS);
+            nioServer.start();
+        } catch (IOException e) {
+            System.err.println("Server error: " + e.getMessage());
+            e.printStackTrace();
+        } finally {
+            shutdown();
+        }
+    }
+
+    /**
+     * Creates (but doesn't start) the thread that drains a client's outbound queue.
+     * Virtual in VIRTUAL mode, otherwise a daemon platform thread.
+     */
+    Thread newWriterThread(Runnable task, String name) {
+        if (writerThreadFactory != null) {
+            return writerThreadFactory.newThread(task);
+        }
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(true);
+        return thread;
+    }
+
+    /**
+     * Finds the session a client is joining: the session itself, or in a
+     * cluster a proxy to the node that owns it.
+     * @param sessionName Name of the session
+     * @return The session to call addClient on
+     */
+    SessionHandle openSession(String sessionName) {
+        return cluster != null ? cluster.openSession(sessionName) : getOrCreateSession(sessionName);
+    }
+
+    /**
+     * Finds or creates a session for a client about to join it. The join is
+     * reserved so the session stays registered until the client's addClient runs.
+     * @param sessionName Name of the session
+     * @return The session to call addClient on
+     */
     public Session getOrCreateSession(String sessionName) {
-        return sessions.computeIfAbsent(sessionName, name -> {
-            if (ENABLE_DATABASE && sessionDao != null) {
-                return new Session(name, sessionDao, true);
-            } else {
-                return new Session(name);
+        return sessions.compute(sessionName, (name, session) -> {
+            if (session == null) {
+                session = new Session(name, store, shards);
             }
+            session.reserveJoin();
+            return session;
         });
     }
 
+    /**
+     * Called once a session's last client has left. The session is kept warm
+     * for its idle TTL, so clients rejoining soon find it in memory, unless the
+     * TTL is 0, in which case it is dropped now.
+     * @param sessionName Name of the session
+     */
     public void removeEmptySession(String sessionName) {
+        if (hibernator.keepsIdleSessions()) {
+            return;
+        }
         Session session = sessions.get(sessionName);
-        if (session != null && session.isEmpty()) {
-            sessions.remove(sessionName);
-            System.out.println("Session removed: " + sessionName);
+        if (session != null) {
+            evictSession(session);
         }
     }
 
+    /**
+     * Drops a session if it has no clients. Runs on the session's shard, after
+     * any removeClient queued before it. A session whose store hasn't taken all
+     * of its board yet is kept until it has.
+     * @param session The session to drop
+     */
+    void evictSession(Session session) {
+        String sessionName = session.getSessionName();
+        session.execute(() -> {
+            if (session.isIdle() && !session.flushToStore()) {
+                System.out.println("Keeping session " + sessionName + ": its store hasn't caught up");
+                if (!hibernator.keepsIdleSessions()) {
+                    // Nothing else comes back for it; with a TTL the next sweep does
+                    session.schedule(() -> evictSession(session), EVICT_RETRY_MS);
+                }
+                return;
+            }
+            // Checked inside computeIfPresent so it can't interleave with a join reserving it
+            boolean[] removed = new boolean[1];
+            sessions.computeIfPresent(sessionName, (name, current) -> {
+                removed[0] = current == session && session.isIdle();
+                return removed[0] ? null : current;
+            });
+            if (removed[0]) {
+                if (store != null) {
+                    // Outside the remapping, as it may force and unmap files. A rejoin's session
+                    // shares this shard, so its load can't start until this task has finished.
+                    store.release(sessionName);
+                }
+                System.out.println("Session removed: " + sessionName);
+            }
+        });
+    }
+
     public void shutdown() {
         running = false;
+        hibernator.close();
+        if (cluster != null) {
+            cluster.close();
+        }
+        if (nioServer != null) {
+            nioServer.shutdown();
+        }
+        try {
+            if (serverSocket != null && !serverSocket.isClosed()) {
+                serverSocket.close();
+            }
+        } catch (IOException e) {
+            System.err.println("Error closing server socket: " + e.getMessage());
+        }
         threadPool.shutdown();
         try {
             if (!threadPool.awaitTermination(5, TimeUnit.SECONDS)) {
@@ -96,6 +281,29 @@ public class WhiteboardServer {
         } catch (InterruptedException e) {
             threadPool.shutdownNow();
         }
+        // Give each store what its session holds beyond it, waiting a while for a full queue to drain
+        long deadline = System.currentTimeMillis() + 5000;
+        for (Session session : sessions.values()) {
+            session.execute(() -> {
+                try {
+                    while (!session.flushToStore()) {
+                        if (System.currentTimeMillis() >= deadline) {
+                            System.err.println("Session " + session.getSessionName() + " not fully saved at shutdown");
+                            return;
+                        }
+                        Thread.sleep(50);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+        }
+        // Session work still queued hands its last drawings to the store before it closes
+        shards.shutdown(10000);
+        if (store != null) {
+            // Apply drawings still queued and make them durable
+            store.close();
+        }
         System.out.println("Server shutdown complete.");
     }
 }
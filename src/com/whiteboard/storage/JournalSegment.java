@@ -0,0 +1,341 @@
+package com.whiteboard.storage;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * One memory-mapped file of a session journal. The file is allocated at its
+ * full size up front and records are written into the mapping back to back:
+ *
+ *   int length | int crc32 | byte type | payload (UTF-8)
+ *
+ * where length counts the type byte and payload, and the CRC covers the same
+ * bytes. The length is written last, so a record cut short by a crash reads
+ * as either the zero padding after the last record or a CRC mismatch; either
+ * way it marks the end of the segment on recovery.
+ *
+ * Records are numbered from the segment's base sequence, which is also its
+ * file name. A sparse index of (sequence, position) pairs, one per
+ * INDEX_INTERVAL_BYTES, lets a reader start from a given record without
+ * scanning the whole file.
+ *
+ * Not thread-safe: guarded by the owning {@link SessionJournal}.
+ */
+final class JournalSegment {
+
+    static final byte SAVE = 1;
+    static final byte DELETE = 2;
+    static final byte CLEAR = 3;
+
+    static final String SUFFIX = ".log";
+    private static final int HEADER_BYTES = 8;
+    private static final int INDEX_INTERVAL_BYTES = 64 * 1024;
+
+    /**
+     * Receives records read back from a segment
+     */
+    interface RecordVisitor {
+        void visit(long seq, byte type, String payload);
+    }
+
+    final long baseSeq;
+    private final Path path;
+    private final FileChannel channel;
+    private final MappedByteBuffer buffer;
+    private int end;
+    private int records;
+    private volatile boolean dirty;
+    // Set on open if records after a torn write were discarded
+    boolean tornTail;
+    // Set on open: sequence number of the segment's last clear, or -1 if it has none
+    long lastClearSeq = -1;
+
+    // Sparse index, in sequence order
+    private long[] indexSeq = new long[8];
+    private int[] indexPos = new int[8];
+    private int indexSize;
+    private int lastIndexedPos = -INDEX_INTERVAL_BYTES;
+
+    private JournalSegment(long baseSeq, Path path, FileChannel channel, MappedByteBuffer buffer) {
+        this.baseSeq = baseSeq;
+        this.path = path;
+        this.channel = channel;
+        this.buffer = buffer;
+    }
+
+    /**
+     * Creates and maps a new, empty segment file
+     * @param dir The session's journal directory
+     * @param baseSeq Sequence number of the segment's first record
+     * @param capacity File size in bytes
+     */
+    static JournalSegment create(Path dir, long baseSeq, int capacity) throws IOException {
+        return createAt(dir.resolve(fileName(baseSeq)), baseSeq, capacity);
+    }
+
+    /**
+     * Creates and maps a new, empty segment at an explicit path
+     * @param path The file to create
+     * @param baseSeq Sequence number of the segment's first record
+     * @param capacity File size in bytes
+     */
+    static JournalSegment createAt(Path path, long baseSeq, int capacity) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(path.toFile(), "rw")) {
+            file.setLength(capacity);
+        }
+        return map(path, baseSeq);
+    }
+
+    /**
+     * Maps an existing segment file and finds where its valid records end
+     * @param path The segment file
+     * @param baseSeq Sequence number of its first record
+     * @param appendable Whether the segment will take appends, so anything
+     *                   left after its last record has to be cleared
+     */
+    static JournalSegment open(Path path, long baseSeq, boolean appendable) throws IOException {
+        JournalSegment segment = map(path, baseSeq);
+        segment.tornTail = segment.recover(appendable);
+        return segment;
+    }
+
+    private static JournalSegment map(Path path, long baseSeq) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(path.toFile(), "rw");
+        FileChannel channel = file.getChannel();
+        try {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+            return new JournalSegment(baseSeq, path, channel, buffer);
+        } catch (IOException | RuntimeException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    static String fileName(long baseSeq) {
+        return String.format("%020d%s", baseSeq, SUFFIX);
+    }
+
+    /**
+     * Scans records from the start, re-building the sparse index and noting
+     * the last clear. Anything after the first invalid record is a torn
+     * write; in a segment that takes appends it is zeroed so later appends
+     * aren't mistaken for it. Other segments are never written again and
+     * their readers stop at the last good record, so only the record header
+     * there is checked.
+     * @return true if a torn tail was found and discarded
+     */
+    private boolean recover(boolean appendable) {
+        int pos = 0;
+        CRC32 crc = new CRC32();
+        while (true) {
+            int length = recordLength(pos);
+            if (length <= 0) {
+                break;
+            }
+            if (storedCrc(pos) != checksum(crc, pos, length)) {
+                break;
+            }
+            if (buffer.get(pos + HEADER_BYTES) == CLEAR) {
+                lastClearSeq = baseSeq + records;
+            }
+            index(pos, baseSeq + records);
+            records++;
+            pos += HEADER_BYTES + length;
+        }
+        end = pos;
+
+        if (!appendable) {
+            return end + HEADER_BYTES <= buffer.capacity() && buffer.getLong(end) != 0;
+        }
+        if (!hasDataFrom(end)) {
+            return false;
+        }
+        ByteBuffer rest = buffer.duplicate();
+        rest.position(end);
+        byte[] zeros = new byte[8192];
+        while (rest.hasRemaining()) {
+            rest.put(zeros, 0, Math.min(zeros.length, rest.remaining()));
+        }
+        dirty = true;
+        return true;
+    }
+
+    /**
+     * @return true if any byte from pos to the end of the file is set
+     */
+    private boolean hasDataFrom(int pos) {
+        int capacity = buffer.capacity();
+        for (; pos + 8 <= capacity; pos += 8) {
+            if (buffer.getLong(pos) != 0) {
+                return true;
+            }
+        }
+        for (; pos < capacity; pos++) {
+            if (buffer.get(pos) != 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return Length of the record at pos, or 0 if there isn't a complete one
+     */
+    private int recordLength(int pos) {
+        if (pos + HEADER_BYTES > buffer.capacity()) {
+            return 0;
+        }
+        int length = buffer.getInt(pos);
+        if (length <= 0 || length > buffer.capacity() - pos - HEADER_BYTES) {
+            return 0;
+        }
+        return length;
+    }
+
+    private int storedCrc(int pos) {
+        return buffer.getInt(pos + 4);
+    }
+
+    private int checksum(CRC32 crc, int pos, int length) {
+        ByteBuffer body = buffer.duplicate();
+        body.limit(pos + HEADER_BYTES + length).position(pos + HEADER_BYTES);
+        crc.reset();
+        crc.update(body);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Writes a record if it fits
+     * @param type SAVE, DELETE or CLEAR
+     * @param payload Record body
+     * @return false if the segment is too full for it
+     */
+    boolean tryAppend(byte type, byte[] payload) {
+        int length = 1 + payload.length;
+        if (end + HEADER_BYTES + length > buffer.capacity()) {
+            return false;
+        }
+        CRC32 crc = new CRC32();
+        crc.update(type);
+        crc.update(payload);
+
+        buffer.put(end + HEADER_BYTES, type);
+        ByteBuffer body = buffer.duplicate();
+        body.position(end + HEADER_BYTES + 1);
+        body.put(payload);
+        buffer.putInt(end + 4, (int) crc.getValue());
+        // Length last: until it is written the record reads as the end of the segment
+        buffer.putInt(end, length);
+
+        index(end, baseSeq + records);
+        records++;
+        end += HEADER_BYTES + length;
+        dirty = true;
+        return true;
+    }
+
+    /**
+     * @param payloadBytes Size of a record's payload
+     * @return Bytes the record takes in a segment
+     */
+    static int recordBytes(int payloadBytes) {
+        return HEADER_BYTES + 1 + payloadBytes;
+    }
+
+    private void index(int pos, long seq) {
+        if (pos - lastIndexedPos < INDEX_INTERVAL_BYTES) {
+            return;
+        }
+        if (indexSize == indexSeq.length) {
+            indexSeq = Arrays.copyOf(indexSeq, indexSize * 2);
+            indexPos = Arrays.copyOf(indexPos, indexSize * 2);
+        }
+        indexSeq[indexSize] = seq;
+        indexPos[indexSize] = pos;
+        indexSize++;
+        lastIndexedPos = pos;
+    }
+
+    /**
+     * Reads records in order, starting at the given sequence number
+     * @param fromSeq First record wanted; earlier ones are skipped
+     * @param visitor Receives each record
+     */
+    void read(long fromSeq, RecordVisitor visitor) {
+        int pos = 0;
+        long seq = baseSeq;
+        // Start from the last indexed record at or before fromSeq
+        int lo = 0;
+        int hi = indexSize - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            if (indexSeq[mid] <= fromSeq) {
+                pos = indexPos[mid];
+                seq = indexSeq[mid];
+                lo = mid + 1;
+            } else {
+                hi = mid - 1;
+            }
+        }
+
+        byte[] scratch = new byte[256];
+        while (pos < end) {
+            int length = buffer.getInt(pos);
+            if (seq >= fromSeq) {
+                int payloadLength = length - 1;
+                if (scratch.length < payloadLength) {
+                    scratch = new byte[Math.max(payloadLength, scratch.length * 2)];
+                }
+                ByteBuffer body = buffer.duplicate();
+                body.position(pos + HEADER_BYTES + 1);
+                body.get(scratch, 0, payloadLength);
+                visitor.visit(seq, buffer.get(pos + HEADER_BYTES),
+                        new String(scratch, 0, payloadLength, StandardCharsets.UTF_8));
+            }
+            pos += HEADER_BYTES + length;
+            seq++;
+        }
+    }
+
+    /**
+     * @return Sequence number the next record appended here would get
+     */
+    long nextSeq() {
+        return baseSeq + records;
+    }
+
+    boolean isEmpty() {
+        return records == 0;
+    }
+
+    /**
+     * Writes changed pages back to the file
+     */
+    void force() {
+        if (dirty) {
+            dirty = false;
+            buffer.force();
+        }
+    }
+
+    void close() throws IOException {
+        force();
+        channel.close();
+    }
+
+    /**
+     * Closes and removes the segment's file
+     */
+    void delete() throws IOException {
+        channel.close();
+        Files.deleteIfExists(path);
+    }
+}
@@ -0,0 +1,212 @@
+package com.whiteboard.storage;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Stores each session as a local append-only journal of memory-mapped
+ * segment files, so a single server keeps its boards across restarts without
+ * a database. Writes go straight into the mapping (no system call per write);
+ * a background thread forces them to disk every sync interval, or after
+ * every write if the interval is 0.
+ *
+ * Layout: one directory per session under the journal directory, named after
+ * the session, holding that session's segments. See {@link SessionJournal}.
+ */
+public class JournalSessionStore implements SessionStore {
+
+    private final Path root;
+    private final int segmentBytes;
+    private final boolean syncEveryWrite;
+    private final Map<String, SessionJournal> journals = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService syncer;
+
+    private final AtomicLong appended = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+
+    /**
+     * @param root Directory holding the session journals (created if missing)
+     * @param segmentBytes Size of each segment file
+     * @param syncMillis How often appended records are forced to disk; 0 forces after every write
+     * @throws IOException If the directory can't be created
+     */
+    public JournalSessionStore(Path root, int segmentBytes, int syncMillis) throws IOException {
+        this.root = Files.createDirectories(root);
+        this.segmentBytes = segmentBytes;
+        this.syncEveryWrite = syncMillis <= 0;
+        if (syncEveryWrite) {
+            this.syncer = null;
+        } else {
+            this.syncer = Executors.newSingleThreadScheduledExecutor(task -> {
+                Thread thread = new Thread(task, "journal-sync");
+                thread.setDaemon(true);
+                return thread;
+            });
+            syncer.scheduleWithFixedDelay(this::syncAll, syncMillis, syncMillis, TimeUnit.MILLISECONDS);
+        }
+        System.out.println("Journal storage in " + root.toAbsolutePath());
+    }
+
+    @Override
+    public void load(String sessionName, Consumer<String> drawings) {
+        SessionJournal journal = journal(sessionName);
+        if (journal == null) {
+            return;
+        }
+        try {
+            journal.load(drawings);
+        } catch (IOException e) {
+            System.err.println("Error loading journal for session " + sessionName + ": " + e.getMessage());
+        }
+    }
+
+    @Override
+    public boolean append(String sessionName, String drawing) {
+        return write(sessionName, JournalSegment.SAVE, drawing);
+    }
+
+    @Override
+    public boolean delete(String sessionName, String shapeId) {
+        return write(sessionName, JournalSegment.DELETE, shapeId);
+    }
+
+    @Override
+    public boolean clear(String sessionName) {
+        return write(sessionName, JournalSegment.CLEAR, "");
+    }
+
+    /**
+     * Writes the board to a new segment that replaces the journal once it is
+     * on disk, rather than a clear followed by appends: the clear would drop
+     * the older segments before the drawings after it were durable.
+     */
+    @Override
+    public boolean snapshot(String sessionName, List<String> drawings) {
+        SessionJournal journal = journal(sessionName);
+        if (journal == null) {
+            failed.incrementAndGet();
+            return false;
+        }
+        try {
+            if (!journal.snapshot(drawings)) {
+                System.err.println("Journal for session " + sessionName + ": board too large to snapshot");
+                return false;
+            }
+            appended.addAndGet(drawings.size() + 1);
+            return true;
+        } catch (IOException e) {
+            failed.incrementAndGet();
+            System.err.println("Error snapshotting journal for session " + sessionName + ": " + e.getMessage());
+            return false;
+        }
+    }
+
+    private boolean write(String sessionName, byte type, String payload) {
+        SessionJournal journal = journal(sessionName);
+        if (journal == null) {
+            failed.incrementAndGet();
+            return false;
+        }
+        try {
+            journal.append(type, payload);
+            if (syncEveryWrite) {
+                journal.sync();
+            }
+            appended.incrementAndGet();
+            return true;
+        } catch (IOException e) {
+            failed.incrementAndGet();
+            System.err.println("Error writing journal for session " + sessionName + ": " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * @return The session's open journal, opening it if needed, or null if it can't be opened
+     */
+    private SessionJournal journal(String sessionName) {
+        SessionJournal journal = journals.get(sessionName);
+        if (journal != null) {
+            return journal;
+        }
+        try {
+            return journals.computeIfAbsent(sessionName, name -> {
+                try {
+                    return SessionJournal.open(root.resolve(directoryName(name)), segmentBytes);
+                } catch (IOException e) {
+                    throw new JournalOpenException(e);
+                }
+            });
+        } catch (JournalOpenException e) {
+            System.err.println("Error opening journal for session " + sessionName + ": " + e.getCause().getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Session names are user input: encode them so any name is one safe directory name
+     */
+    private static String directoryName(String sessionName) {
+        try {
+            return URLEncoder.encode(sessionName, "UTF-8").replace(".", "%2E").replace("*", "%2A");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public void release(String sessionName) {
+        SessionJournal journal = journals.remove(sessionName);
+        if (journal != null) {
+            journal.close();
+        }
+    }
+
+    private void syncAll() {
+        for (SessionJournal journal : journals.values()) {
+            journal.sync();
+        }
+    }
+
+    @Override
+    public void close() {
+        if (syncer != null) {
+            syncer.shutdown();
+        }
+        System.out.println(getStats());
+        for (SessionJournal journal : journals.values()) {
+            journal.close();
+        }
+        journals.clear();
+    }
+
+    /**
+     * @return One line summarising writes and open journals
+     */
+    public String getStats() {
+        return "Journal storage: " + appended.get() + " records written, " + failed.get() + " failed, "
+                + journals.size() + " sessions open";
+    }
+
+    /**
+     * Carries an IOException out of computeIfAbsent
+     */
+    private static final class JournalOpenException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        JournalOpenException(IOException cause) {
+            super(cause);
+        }
+    }
+}
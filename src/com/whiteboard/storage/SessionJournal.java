@@ -0,0 +1,319 @@
+package com.whiteboard.storage;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * One session's append-only journal: a directory of {@link JournalSegment}s
+ * holding every save, delete and clear in the order they happened. Replaying
+ * from the last clear rebuilds the board.
+ *
+ * A clear starts a fresh segment and, once it is on disk, deletes the older
+ * ones. A journal that has built up far more records than live drawings is
+ * compacted when it is loaded: the live drawings are written to a new segment
+ * after a clear, which then replaces everything before it.
+ */
+final class SessionJournal {
+
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final int MIN_COMPACT_RECORDS = 1024;
+
+    private final Path dir;
+    private final int segmentBytes;
+    private final ReentrantLock lock = new ReentrantLock();
+    // Oldest first; the last one takes appends
+    private final List<JournalSegment> segments = new ArrayList<>();
+    // Sequence number of the last clear, or -1 if none is in the journal
+    private long clearSeq = -1;
+    private boolean closed;
+
+    private SessionJournal(Path dir, int segmentBytes) {
+        this.dir = dir;
+        this.segmentBytes = segmentBytes;
+    }
+
+    /**
+     * Opens a session's journal, creating it if it doesn't exist. Each segment
+     * is checked record by record; a torn write at the end is discarded.
+     * @param dir The session's journal directory
+     * @param segmentBytes Size of new segment files
+     */
+    static SessionJournal open(Path dir, int segmentBytes) throws IOException {
+        Files.createDirectories(dir);
+        SessionJournal journal = new SessionJournal(dir, segmentBytes);
+        try {
+            journal.recover();
+        } catch (IOException | RuntimeException e) {
+            journal.closeSegments();
+            throw e;
+        }
+        return journal;
+    }
+
+    private void recover() throws IOException {
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+            for (Path file : stream) {
+                String name = file.getFileName().toString();
+                if (name.endsWith(TEMP_SUFFIX)) {
+                    // Left by a compaction that didn't finish; the originals are intact
+                    Files.delete(file);
+                } else if (name.endsWith(JournalSegment.SUFFIX)) {
+                    files.add(file);
+                }
+            }
+        }
+        Collections.sort(files);
+
+        for (int i = 0; i < files.size(); i++) {
+            Path file = files.get(i);
+            String name = file.getFileName().toString();
+            long baseSeq = Long.parseLong(name.substring(0, name.length() - JournalSegment.SUFFIX.length()));
+            JournalSegment segment = JournalSegment.open(file, baseSeq, i == files.size() - 1);
+            if (segment.tornTail) {
+                System.err.println("Journal " + file + ": discarded a torn write after record "
+                        + (segment.nextSeq() - 1));
+            }
+            segments.add(segment);
+            if (segment.lastClearSeq >= 0) {
+                clearSeq = segment.lastClearSeq;
+            }
+        }
+        if (clearSeq >= 0) {
+            dropSegmentsBefore(clearSeq);
+        }
+        if (segments.isEmpty()) {
+            segments.add(JournalSegment.create(dir, 0, segmentBytes));
+        }
+    }
+
+    /**
+     * Rebuilds the board by replaying the journal from its last clear, and
+     * compacts the journal if most of what it holds is no longer live.
+     * @param drawings Receives the live drawings, oldest first
+     * @return Number of live drawings
+     */
+    int load(Consumer<String> drawings) throws IOException {
+        lock.lock();
+        try {
+            // Keyed by shape id; a drawing saved again keeps its place, as in the session's history
+            Map<String, String> live = new LinkedHashMap<>();
+            long[] replayed = new long[1];
+            long fromSeq = Math.max(clearSeq, 0);
+            for (JournalSegment segment : segments) {
+                if (segment.nextSeq() <= fromSeq) {
+                    continue;
+                }
+                segment.read(fromSeq, (seq, type, payload) -> {
+                    replayed[0]++;
+                    if (type == JournalSegment.SAVE) {
+                        live.put(idOf(payload, seq), payload);
+                    } else if (type == JournalSegment.DELETE) {
+                        live.remove(payload);
+                    } else if (type == JournalSegment.CLEAR) {
+                        live.clear();
+                    }
+                });
+            }
+
+            int count = live.size();
+            if (replayed[0] >= MIN_COMPACT_RECORDS && replayed[0] > 2L * count + 1) {
+                try {
+                    compact(live.values());
+                } catch (IOException e) {
+                    System.err.println("Error compacting journal " + dir + ": " + e.getMessage());
+                }
+            }
+            // Handed over one by one and dropped from the replay map, so the board is only held once
+            Iterator<String> it = live.values().iterator();
+            while (it.hasNext()) {
+                drawings.accept(it.next());
+                it.remove();
+            }
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Appends a record, starting a new segment if the current one is full
+     */
+    void append(byte type, String payload) throws IOException {
+        byte[] bytes = payload.getBytes(StandardCharsets.UTF_8);
+        lock.lock();
+        try {
+            if (closed) {
+                throw new IOException("Journal is closed: " + dir);
+            }
+            JournalSegment tail = tail();
+            if (type == JournalSegment.CLEAR) {
+                appendClear(tail, bytes);
+                return;
+            }
+            if (!tail.tryAppend(type, bytes)) {
+                tail = roll(tail, JournalSegment.recordBytes(bytes.length));
+                tail.tryAppend(type, bytes);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Replaces the journal's contents with the given board, as a compaction does
+     * @param drawings The live drawings, oldest first
+     * @return false if the board is too large for one segment and the journal was left as it is
+     */
+    boolean snapshot(Collection<String> drawings) throws IOException {
+        lock.lock();
+        try {
+            if (closed) {
+                throw new IOException("Journal is closed: " + dir);
+            }
+            return compact(drawings);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Writes a clear at the start of a fresh segment, makes it durable, then
+     * deletes the segments it supersedes
+     */
+    private void appendClear(JournalSegment tail, byte[] bytes) throws IOException {
+        if (!tail.isEmpty()) {
+            tail = roll(tail, JournalSegment.recordBytes(bytes.length));
+        }
+        clearSeq = tail.nextSeq();
+        tail.tryAppend(JournalSegment.CLEAR, bytes);
+        tail.force();
+        dropSegmentsBefore(clearSeq);
+    }
+
+    private JournalSegment roll(JournalSegment tail, int recordBytes) throws IOException {
+        tail.force();
+        JournalSegment next = JournalSegment.create(dir, tail.nextSeq(), Math.max(segmentBytes, recordBytes));
+        segments.add(next);
+        return next;
+    }
+
+    /**
+     * Replaces the journal's contents with a clear followed by the live drawings.
+     * They are written to a temporary file that is renamed into place once it
+     * is on disk, so a crash part way leaves the old segments in charge.
+     * @return false if the drawings don't fit in one segment, and nothing was done
+     */
+    private boolean compact(Collection<String> drawings) throws IOException {
+        // Sized first, then encoded again while writing, rather than holding every payload
+        long bytes = JournalSegment.recordBytes(0);
+        for (String drawing : drawings) {
+            bytes += JournalSegment.recordBytes(drawing.getBytes(StandardCharsets.UTF_8).length);
+        }
+        if (bytes > Integer.MAX_VALUE - segmentBytes) {
+            return false;
+        }
+
+        JournalSegment tail = tail();
+        tail.force();
+        long baseSeq = tail.nextSeq();
+        Path temp = dir.resolve(JournalSegment.fileName(baseSeq) + TEMP_SUFFIX);
+        JournalSegment compacted = JournalSegment.createAt(temp, baseSeq, (int) bytes + segmentBytes);
+        compacted.tryAppend(JournalSegment.CLEAR, new byte[0]);
+        for (String drawing : drawings) {
+            compacted.tryAppend(JournalSegment.SAVE, drawing.getBytes(StandardCharsets.UTF_8));
+        }
+        compacted.force();
+        compacted.close();
+        if (tail.isEmpty()) {
+            // Its file name is the one the compacted segment takes
+            segments.remove(segments.size() - 1).delete();
+        }
+        Path target = dir.resolve(JournalSegment.fileName(baseSeq));
+        Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE);
+
+        segments.add(JournalSegment.open(target, baseSeq, true));
+        clearSeq = baseSeq;
+        dropSegmentsBefore(clearSeq);
+        System.out.println("Compacted journal " + dir.getFileName() + " to " + drawings.size() + " drawings");
+        return true;
+    }
+
+    /**
+     * Deletes segments that end before the given record
+     */
+    private void dropSegmentsBefore(long seq) throws IOException {
+        while (segments.size() > 1 && segments.get(1).baseSeq <= seq) {
+            segments.remove(0).delete();
+        }
+    }
+
+    private JournalSegment tail() {
+        return segments.get(segments.size() - 1);
+    }
+
+    /**
+     * Writes appended records back to disk
+     */
+    void sync() {
+        List<JournalSegment> current;
+        lock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            current = new ArrayList<>(segments);
+        } finally {
+            lock.unlock();
+        }
+        // Forced outside the lock so appends don't wait on the disk
+        for (JournalSegment segment : current) {
+            segment.force();
+        }
+    }
+
+    void close() {
+        lock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            closeSegments();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void closeSegments() {
+        for (JournalSegment segment : segments) {
+            try {
+                segment.close();
+            } catch (IOException e) {
+                System.err.println("Error closing journal segment in " + dir + ": " + e.getMessage());
+            }
+        }
+        segments.clear();
+    }
+
+    /**
+     * @return The drawing's shape id, or a key of its own if it has none
+     */
+    private static String idOf(String drawing, long seq) {
+        int idEnd = drawing.indexOf(':');
+        return idEnd > 0 ? drawing.substring(0, idEnd) : "#" + seq;
+    }
+}
@@ -0,0 +1,85 @@
+package com.whiteboard.storage;
+
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Where sessions keep their drawings between runs. A session loads its board
+ * once when it is created, then reports each change as it happens; the store
+ * may apply changes in the background, but must apply them in the order they
+ * were reported for a session. A store that can't take a change (its queue
+ * is full, say) says so rather than waiting; the session then holds on to it,
+ * or to the need for a snapshot, until the store catches up.
+ *
+ * Calls for one session come from that session's shard thread; calls for
+ * different sessions may arrive concurrently.
+ */
+public interface SessionStore {
+
+    /**
+     * Streams a session's board back. Drawings are handed over as they are
+     * read, so a large board is never held twice.
+     * @param sessionName The name of the session
+     * @param drawings Receives its live drawings, oldest first
+     */
+    void load(String sessionName, Consumer<String> drawings);
+
+    /**
+     * Records a finished drawing. A drawing with the id of an existing one replaces it.
+     * @param sessionName The name of the session
+     * @param drawing Serialized shape, id:TYPE:...
+     * @return false if the store couldn't take it
+     */
+    boolean append(String sessionName, String drawing);
+
+    /**
+     * Records that a drawing was erased
+     * @param sessionName The name of the session
+     * @param shapeId The shape's id
+     * @return false if the store couldn't take it
+     */
+    boolean delete(String sessionName, String shapeId);
+
+    /**
+     * Records that a session's board was cleared
+     * @param sessionName The name of the session
+     * @return false if the store couldn't take it
+     */
+    boolean clear(String sessionName);
+
+    /**
+     * Records a session's whole live board, replacing everything recorded for
+     * it so far, so the store can drop the changes it supersedes. Sessions call
+     * it every so often and when they go idle. The default rewrites the board
+     * as a clear followed by an append per drawing.
+     * @param sessionName The name of the session
+     * @param drawings Its live drawings, oldest first; not modified afterwards
+     * @return false if the snapshot wasn't taken, so the session tries again
+     * later; a store that writes in the background returns true once it's queued
+     */
+    default boolean snapshot(String sessionName, List<String> drawings) {
+        if (!clear(sessionName)) {
+            return false;
+        }
+        for (String drawing : drawings) {
+            if (!append(sessionName, drawing)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Tells the store a session has no clients left and was dropped from
+     * memory, so per-session resources can be let go. It may be loaded again
+     * later, but not before this returns: it is called on the session's shard.
+     * @param sessionName The name of the session
+     */
+    default void release(String sessionName) {
+    }
+
+    /**
+     * Makes everything recorded so far durable and frees the store's resources
+     */
+    void close();
+}